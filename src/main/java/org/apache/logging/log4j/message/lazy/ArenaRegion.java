@@ -0,0 +1,508 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.util.Chars;
+import org.apache.logging.log4j.util.StringBuilders;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * The fields of a {@link FormattedDataMessage} held in a {@link MessageArena}. Values are rendered straight from the
+ * arena; reading a region after it has been released throws an {@link IllegalStateException}.
+ *
+ * <p>Every accessor checks that the region is live, and those that copy bytes out check again once they are done,
+ * so a read racing a release throws rather than returning the fields of a message that has since reused the space,
+ * though it may have appended part of a field by then. Release a message only once nothing reads it any more, as
+ * {@link ArenaReleaseAppender} does.</p>
+ */
+final class ArenaRegion implements Runnable {
+  private final MessageArena arena;
+  private final int offset;
+  private final int stamp;
+  private Map<String, Object> remainder;
+  private Cleaner.Cleanable cleanable;
+
+  ArenaRegion(final MessageArena arena, final int offset, final int stamp, final Map<String, Object> remainder) {
+    this.arena = arena;
+    this.offset = offset;
+    this.stamp = stamp;
+    this.remainder = remainder;
+  }
+
+  /**
+   * Returns the data that could not be encoded. Called once, while the message is being built.
+   * @return the data to keep on the heap.
+   */
+  Map<String, Object> remainder() {
+    final Map<String, Object> result = remainder;
+    remainder = null;
+    return result;
+  }
+
+  /**
+   * Ties the region's lifetime to its message, so that it is released if the message is collected without being
+   * released. Called once the message has copied the {@link #remainder()}.
+   * @param owner The message.
+   */
+  void adopt(final Object owner) {
+    arena.clearRemainder();
+    cleanable = MessageArena.register(owner, this);
+  }
+
+  /**
+   * Releases the region. Later calls have no effect.
+   */
+  void release() {
+    cleanable.clean();
+  }
+
+  @Override
+  public void run() {
+    arena.release(offset, stamp);
+  }
+
+  int size() {
+    checkLive();
+    return arena.buffer.getInt(offset + MessageArena.COUNT);
+  }
+
+  /**
+   * Returns the position of the first entry, to walk the entries in key order with {@link #nextEntry(int)}.
+   * @return the position.
+   */
+  int firstEntry() {
+    checkLive();
+    return offset + MessageArena.ENTRIES;
+  }
+
+  /**
+   * Compares the key of an entry with {@code key} as {@link String#compareTo(String)} would.
+   * @param position The position of the entry.
+   * @param key The key to compare with.
+   * @return a negative number, zero or a positive number as the entry's key sorts before, equal to or after key.
+   */
+  int compareKey(final int position, final String key) {
+    checkLive();
+    final ByteBuffer buffer = arena.buffer;
+    final int length = buffer.getShort(position);
+    final int common = Math.min(length, key.length());
+    for (int i = 0; i < common; i++) {
+      final int diff = (char) buffer.get(position + 2 + i) - key.charAt(i);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return length - key.length();
+  }
+
+  /**
+   * Appends an entry as {@link FormattedDataMessage#appendField} would, copying the value straight out of the arena.
+   * @param style The style of the field.
+   * @param position The position of the entry.
+   * @param first Whether nothing has been appended to the fields yet.
+   * @param sb The StringBuilder to append to.
+   */
+  void appendField(final FormattedDataMessage.FieldStyle style, final int position, final boolean first,
+      final StringBuilder sb) {
+    checkLive();
+    switch (style) {
+      case STRUCTURED:
+        if (!first) {
+          sb.append(' ');
+        }
+        appendKey(position, sb);
+        sb.append(Chars.EQ).append(Chars.DQUOTE);
+        appendValue(valuePosition(position), sb);
+        sb.append(Chars.DQUOTE);
+        break;
+      case PARAMS:
+        sb.append(' ');
+        appendKey(position, sb);
+        sb.append(Chars.EQ).append(Chars.DQUOTE);
+        appendValue(valuePosition(position), true, sb);
+        sb.append(Chars.DQUOTE);
+        break;
+      case JSON: {
+        sb.append(", ").append(Chars.DQUOTE);
+        int start = sb.length();
+        appendKey(position, sb);
+        StringBuilders.escapeJson(sb, start);
+        sb.append(Chars.DQUOTE).append(':').append(Chars.DQUOTE);
+        start = sb.length();
+        appendValue(valuePosition(position), sb);
+        StringBuilders.escapeJson(sb, start);
+        sb.append(Chars.DQUOTE);
+        break;
+      }
+      default: {
+        sb.append("  <Entry key=\"");
+        appendKey(position, sb);
+        sb.append("\">");
+        final int start = sb.length();
+        appendValue(valuePosition(position), sb);
+        StringBuilders.escapeXml(sb, start);
+        sb.append("</Entry>\n");
+        break;
+      }
+    }
+    checkLive();
+  }
+
+  /**
+   * Appends the value of a field.
+   * @param key The key of the field.
+   * @param sb The StringBuilder to append to.
+   * @return true if the region holds the field.
+   */
+  boolean appendValue(final String key, final StringBuilder sb) {
+    final int position = find(key);
+    if (position < 0) {
+      return false;
+    }
+    appendValue(valuePosition(position), sb);
+    checkLive();
+    return true;
+  }
+
+  boolean containsKey(final String key) {
+    return find(key) >= 0;
+  }
+
+  /**
+   * Decodes every field into {@code map}.
+   * @param map The map to add the fields to.
+   */
+  void decodeInto(final Map<String, Object> map) {
+    final int count = size();
+    int position = offset + MessageArena.ENTRIES;
+    for (int i = 0; i < count; i++) {
+      map.put(keyAt(position), valueAt(valuePosition(position)));
+      position = nextEntry(position);
+    }
+    checkLive();
+  }
+
+  /**
+   * Returns the sum of the hash codes the entries would have as {@link Map.Entry}s once decoded, computed from the
+   * encoded entries.
+   * @return the hash code of the fields.
+   */
+  int fieldsHashCode() {
+    final int count = size();
+    int position = offset + MessageArena.ENTRIES;
+    int result = 0;
+    for (int i = 0; i < count; i++) {
+      final int value = valuePosition(position);
+      result += stringHashCode(position + 2, arena.buffer.getShort(position), false) ^ valueHashCode(value);
+      position = nextEntry(position);
+    }
+    checkLive();
+    return result;
+  }
+
+  /**
+   * Returns true if an entry holds {@code key} and a value equal to {@code value} once decoded.
+   * @param position The position of the entry.
+   * @param key The key to compare with.
+   * @param value The value to compare with.
+   * @return true if the entry is equal.
+   */
+  boolean entryEquals(final int position, final String key, final Object value) {
+    checkLive();
+    final ByteBuffer buffer = arena.buffer;
+    if (!keyEquals(buffer, position, key)) {
+      return false;
+    }
+    final int at = valuePosition(position);
+    final boolean equal;
+    switch (buffer.get(at)) {
+      case MessageArena.NULL:
+        equal = value == null;
+        break;
+      case MessageArena.FALSE:
+        equal = Boolean.FALSE.equals(value);
+        break;
+      case MessageArena.TRUE:
+        equal = Boolean.TRUE.equals(value);
+        break;
+      case MessageArena.INT:
+        equal = value instanceof Integer && (Integer) value == buffer.getInt(at + 1);
+        break;
+      case MessageArena.LONG:
+        equal = value instanceof Long && (Long) value == buffer.getLong(at + 1);
+        break;
+      case MessageArena.FLOAT:
+        equal = value instanceof Float
+            && Float.floatToIntBits((Float) value) == Float.floatToIntBits(buffer.getFloat(at + 1));
+        break;
+      case MessageArena.DOUBLE:
+        equal = value instanceof Double
+            && Double.doubleToLongBits((Double) value) == Double.doubleToLongBits(buffer.getDouble(at + 1));
+        break;
+      default:
+        equal = value instanceof String && stringEquals(at, (String) value);
+        break;
+    }
+    checkLive();
+    return equal;
+  }
+
+  /**
+   * Returns true if an entry of this region and an entry of {@code other} are equal once decoded.
+   * @param position The position of the entry in this region.
+   * @param other The other region.
+   * @param otherPosition The position of the entry in the other region.
+   * @return true if the entries are equal.
+   */
+  boolean entryEquals(final int position, final ArenaRegion other, final int otherPosition) {
+    checkLive();
+    other.checkLive();
+    final ByteBuffer buffer = arena.buffer;
+    final ByteBuffer otherBuffer = other.arena.buffer;
+    final int at = valuePosition(position);
+    final int otherAt = other.valuePosition(otherPosition);
+    final byte tag = buffer.get(at);
+    boolean equal = tag == otherBuffer.get(otherAt)
+        && bytesEqual(buffer, position, otherBuffer, otherPosition, at - position);
+    if (equal) {
+      // a value is encoded the same way whenever it is equal, except for the bits of a NaN
+      switch (tag) {
+        case MessageArena.FLOAT:
+          equal = Float.floatToIntBits(buffer.getFloat(at + 1))
+              == Float.floatToIntBits(otherBuffer.getFloat(otherAt + 1));
+          break;
+        case MessageArena.DOUBLE:
+          equal = Double.doubleToLongBits(buffer.getDouble(at + 1))
+              == Double.doubleToLongBits(otherBuffer.getDouble(otherAt + 1));
+          break;
+        default: {
+          final int length = nextEntry(position) - at;
+          equal = length == other.nextEntry(otherPosition) - otherAt
+              && bytesEqual(buffer, at, otherBuffer, otherAt, length);
+          break;
+        }
+      }
+    }
+    checkLive();
+    other.checkLive();
+    return equal;
+  }
+
+  private static boolean bytesEqual(final ByteBuffer a, final int from, final ByteBuffer b, final int otherFrom,
+      final int length) {
+    for (int i = 0; i < length; i++) {
+      if (a.get(from + i) != b.get(otherFrom + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean stringEquals(final int position, final String s) {
+    final ByteBuffer buffer = arena.buffer;
+    final int length = buffer.getInt(position + 1);
+    if (length != s.length()) {
+      return false;
+    }
+    final boolean latin1 = buffer.get(position) == MessageArena.LATIN1;
+    for (int i = 0; i < length; i++) {
+      final char c = latin1 ? (char) (buffer.get(position + 5 + i) & 0xff) : buffer.getChar(position + 5 + 2 * i);
+      if (c != s.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the hash code of a value as {@link java.util.Objects#hashCode(Object)} would return it once decoded.
+   */
+  private int valueHashCode(final int position) {
+    final ByteBuffer buffer = arena.buffer;
+    switch (buffer.get(position)) {
+      case MessageArena.NULL:
+        return 0;
+      case MessageArena.FALSE:
+        return Boolean.hashCode(false);
+      case MessageArena.TRUE:
+        return Boolean.hashCode(true);
+      case MessageArena.INT:
+        return Integer.hashCode(buffer.getInt(position + 1));
+      case MessageArena.LONG:
+        return Long.hashCode(buffer.getLong(position + 1));
+      case MessageArena.FLOAT:
+        return Float.hashCode(buffer.getFloat(position + 1));
+      case MessageArena.DOUBLE:
+        return Double.hashCode(buffer.getDouble(position + 1));
+      case MessageArena.LATIN1:
+        return stringHashCode(position + 5, buffer.getInt(position + 1), false);
+      default:
+        return stringHashCode(position + 5, buffer.getInt(position + 1), true);
+    }
+  }
+
+  /**
+   * Returns the hash code of encoded characters as {@link String#hashCode()} would return it.
+   */
+  private int stringHashCode(final int position, final int length, final boolean utf16) {
+    final ByteBuffer buffer = arena.buffer;
+    int h = 0;
+    for (int i = 0; i < length; i++) {
+      h = 31 * h + (utf16 ? buffer.getChar(position + 2 * i) : (char) (buffer.get(position + i) & 0xff));
+    }
+    return h;
+  }
+
+  private void checkLive() {
+    if (!arena.isLive(offset, stamp)) {
+      throw new IllegalStateException("The fields of this message have been released");
+    }
+  }
+
+  private int find(final String key) {
+    final ByteBuffer buffer = arena.buffer;
+    final int count = size();
+    int position = offset + MessageArena.ENTRIES;
+    for (int i = 0; i < count; i++) {
+      if (keyEquals(buffer, position, key)) {
+        return position;
+      }
+      position = nextEntry(position);
+    }
+    return -1;
+  }
+
+  private static boolean keyEquals(final ByteBuffer buffer, final int position, final String key) {
+    final int length = buffer.getShort(position);
+    if (length != key.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (buffer.get(position + 2 + i) != key.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  String keyAt(final int position) {
+    final StringBuilder sb = new StringBuilder();
+    appendKey(position, sb);
+    checkLive();
+    return sb.toString();
+  }
+
+  private void appendKey(final int position, final StringBuilder sb) {
+    final ByteBuffer buffer = arena.buffer;
+    final int length = buffer.getShort(position);
+    for (int i = 0; i < length; i++) {
+      sb.append((char) buffer.get(position + 2 + i));
+    }
+  }
+
+  private int valuePosition(final int position) {
+    return position + 2 + arena.buffer.getShort(position);
+  }
+
+  int nextEntry(final int position) {
+    checkLive();
+    final ByteBuffer buffer = arena.buffer;
+    final int value = valuePosition(position);
+    switch (buffer.get(value)) {
+      case MessageArena.INT:
+      case MessageArena.FLOAT:
+        return value + 1 + 4;
+      case MessageArena.LONG:
+      case MessageArena.DOUBLE:
+        return value + 1 + 8;
+      case MessageArena.LATIN1:
+        return value + 1 + 4 + buffer.getInt(value + 1);
+      case MessageArena.UTF16:
+        return value + 1 + 4 + 2 * buffer.getInt(value + 1);
+      default:
+        return value + 1;
+    }
+  }
+
+  /**
+   * Appends a value as {@link FormattedDataMessage#deepToString(Object, StringBuilder)} renders it.
+   */
+  private void appendValue(final int position, final StringBuilder sb) {
+    appendValue(position, false, sb);
+  }
+
+  private void appendValue(final int position, final boolean escape, final StringBuilder sb) {
+    final ByteBuffer buffer = arena.buffer;
+    switch (buffer.get(position)) {
+      case MessageArena.NULL:
+        sb.append((String) null);
+        break;
+      case MessageArena.FALSE:
+        sb.append(false);
+        break;
+      case MessageArena.TRUE:
+        sb.append(true);
+        break;
+      case MessageArena.INT:
+        sb.append(buffer.getInt(position + 1));
+        break;
+      case MessageArena.LONG:
+        sb.append(buffer.getLong(position + 1));
+        break;
+      case MessageArena.FLOAT:
+        sb.append(buffer.getFloat(position + 1));
+        break;
+      case MessageArena.DOUBLE:
+        sb.append(buffer.getDouble(position + 1));
+        break;
+      case MessageArena.LATIN1: {
+        final int length = buffer.getInt(position + 1);
+        for (int i = 0; i < length; i++) {
+          final char c = (char) (buffer.get(position + 5 + i) & 0xff);
+          if (escape && Rfc5424Writer.isParamValueEscaped(c)) {
+            sb.append('\\');
+          }
+          sb.append(c);
+        }
+        break;
+      }
+      default: {
+        final int length = buffer.getInt(position + 1);
+        for (int i = 0; i < length; i++) {
+          final char c = buffer.getChar(position + 5 + 2 * i);
+          if (escape && Rfc5424Writer.isParamValueEscaped(c)) {
+            sb.append('\\');
+          }
+          sb.append(c);
+        }
+        break;
+      }
+    }
+  }
+
+  private Object valueAt(final int position) {
+    final ByteBuffer buffer = arena.buffer;
+    switch (buffer.get(position)) {
+      case MessageArena.NULL:
+        return null;
+      case MessageArena.FALSE:
+        return Boolean.FALSE;
+      case MessageArena.TRUE:
+        return Boolean.TRUE;
+      case MessageArena.INT:
+        return buffer.getInt(position + 1);
+      case MessageArena.LONG:
+        return buffer.getLong(position + 1);
+      case MessageArena.FLOAT:
+        return buffer.getFloat(position + 1);
+      case MessageArena.DOUBLE:
+        return buffer.getDouble(position + 1);
+      default: {
+        final StringBuilder sb = new StringBuilder();
+        appendValue(position, sb);
+        return sb.toString();
+      }
+    }
+  }
+}
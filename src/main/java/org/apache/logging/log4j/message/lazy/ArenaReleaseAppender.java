@@ -0,0 +1,99 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.AppenderControl;
+import org.apache.logging.log4j.core.config.AppenderRef;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+import org.apache.logging.log4j.message.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes events on to its appenders and then releases the {@link MessageArena} region of their
+ * {@link FormattedDataMessage}s. Place it directly under an Async appender whose appenders all finish with an event
+ * before returning, so that regions are recycled as soon as the event has been consumed.
+ *
+ * <pre>
+ * &lt;Async name="Async"&gt;
+ *   &lt;AppenderRef ref="ReleaseArena"/&gt;
+ * &lt;/Async&gt;
+ * &lt;ReleaseArena name="ReleaseArena"&gt;
+ *   &lt;AppenderRef ref="Kafka"/&gt;
+ * &lt;/ReleaseArena&gt;
+ * </pre>
+ */
+@Plugin(name = "ReleaseArena", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE, printObject = true)
+public final class ArenaReleaseAppender extends AbstractAppender {
+  private final Configuration config;
+  private final AppenderRef[] appenderRefs;
+  private final List<AppenderControl> appenders = new ArrayList<>();
+
+  private ArenaReleaseAppender(final String name, final Filter filter, final boolean ignoreExceptions,
+      final Configuration config, final AppenderRef[] appenderRefs) {
+    super(name, filter, null, ignoreExceptions);
+    this.config = config;
+    this.appenderRefs = appenderRefs;
+  }
+
+  @Override
+  public void start() {
+    for (final AppenderRef ref : appenderRefs) {
+      final Appender appender = config.getAppender(ref.getRef());
+      if (appender == null) {
+        LOGGER.error("No appender named {} was configured for {}", ref.getRef(), getName());
+        continue;
+      }
+      appenders.add(new AppenderControl(appender, ref.getLevel(), ref.getFilter()));
+    }
+    if (appenders.isEmpty()) {
+      LOGGER.error("No appenders are available for {}", getName());
+    }
+    super.start();
+  }
+
+  @Override
+  public void append(final LogEvent event) {
+    try {
+      for (final AppenderControl control : appenders) {
+        control.callAppender(event);
+      }
+    } finally {
+      final Message message = event.getMessage();
+      if (message instanceof FormattedDataMessage) {
+        ((FormattedDataMessage) message).release();
+      }
+    }
+  }
+
+  @PluginBuilderFactory
+  public static <B extends Builder<B>> B newBuilder() {
+    return new Builder<B>().asBuilder();
+  }
+
+  public static class Builder<B extends Builder<B>> extends AbstractAppender.Builder<B>
+      implements org.apache.logging.log4j.core.util.Builder<ArenaReleaseAppender> {
+
+    @PluginElement("AppenderRef")
+    @Required(message = "No appender references provided to ReleaseArena")
+    private AppenderRef[] appenderRefs;
+
+    public B setAppenderRefs(final AppenderRef... appenderRefs) {
+      this.appenderRefs = appenderRefs;
+      return asBuilder();
+    }
+
+    @Override
+    public ArenaReleaseAppender build() {
+      return new ArenaReleaseAppender(getName(), getFilter(), isIgnoreExceptions(), getConfiguration(), appenderRefs);
+    }
+  }
+}
@@ -0,0 +1,238 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.AppenderControl;
+import org.apache.logging.log4j.core.config.AppenderRef;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.ConfigurationScheduler;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces identical {@link FormattedDataMessage}s, i.e. those with the same type, id, message template, context and
+ * data, within a time window. The first event of a window is passed on immediately; repeats are counted and dropped,
+ * and once the window has ended a single copy of the event is passed on with the number of dropped repeats added
+ * under {@code countKey}. Other messages are always passed on.
+ *
+ * <p>Windows are looked up by the message's cached {@link FormattedDataMessage#hashCode() hash} and matched with
+ * {@link FormattedDataMessage#equals(Object) equals}, neither of which renders the message, evaluates its lazy values
+ * or moves fields held in a {@link MessageArena} onto the heap; lazy values match when they share a supplier. A
+ * message whose hash collides with that of another message's open window ends that window early. Throwables are not
+ * part of the comparison. Ended windows are flushed by a sweep scheduled on the configuration's scheduler every
+ * {@code windowMillis}, and when the appender stops.</p>
+ *
+ * <p>Place the appender after an Async appender, so that the lookup runs on the Async appender's thread rather than
+ * on the logging threads. The first message of each window that holds a region is copied to the heap, so the
+ * appender may also sit under a {@link ArenaReleaseAppender}.</p>
+ *
+ * <pre>
+ * &lt;Async name="Async"&gt;
+ *   &lt;AppenderRef ref="ReleaseArena"/&gt;
+ * &lt;/Async&gt;
+ * &lt;ReleaseArena name="ReleaseArena"&gt;
+ *   &lt;AppenderRef ref="Coalesce"/&gt;
+ * &lt;/ReleaseArena&gt;
+ * &lt;Coalesce name="Coalesce" windowMillis="1000"&gt;
+ *   &lt;AppenderRef ref="Kafka"/&gt;
+ * &lt;/Coalesce&gt;
+ * </pre>
+ */
+@Plugin(name = "Coalesce", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE, printObject = true)
+public final class CoalescingAppender extends AbstractAppender {
+  private static final long DEFAULT_WINDOW_MILLIS = 1000;
+  private static final String DEFAULT_COUNT_KEY = "repeat_count";
+
+  private final Configuration config;
+  private final AppenderRef[] appenderRefs;
+  private final long windowMillis;
+  private final long windowNanos;
+  private final String countKey;
+  private final ConcurrentHashMap<Integer, Window> windows = new ConcurrentHashMap<>();
+  private final List<AppenderControl> appenders = new ArrayList<>();
+  private ScheduledFuture<?> sweeper;
+
+  private static final class Window {
+    private final LogEvent first;
+    private final FormattedDataMessage message;
+    private final long startNanos;
+    private long repeats;
+
+    Window(final LogEvent first, final FormattedDataMessage message, final long startNanos) {
+      this.first = first;
+      this.message = message;
+      this.startNanos = startNanos;
+    }
+  }
+
+  private CoalescingAppender(final String name, final Filter filter, final boolean ignoreExceptions,
+      final Configuration config, final AppenderRef[] appenderRefs, final long windowMillis, final String countKey) {
+    super(name, filter, null, ignoreExceptions);
+    this.config = config;
+    this.appenderRefs = appenderRefs;
+    this.windowMillis = windowMillis;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.countKey = countKey;
+  }
+
+  @Override
+  public void start() {
+    for (final AppenderRef ref : appenderRefs) {
+      final Appender appender = config.getAppender(ref.getRef());
+      if (appender == null) {
+        LOGGER.error("No appender named {} was configured for {}", ref.getRef(), getName());
+        continue;
+      }
+      appenders.add(new AppenderControl(appender, ref.getLevel(), ref.getFilter()));
+    }
+    if (appenders.isEmpty()) {
+      LOGGER.error("No appenders are available for {}", getName());
+    }
+    final ConfigurationScheduler scheduler = config.getScheduler();
+    if (!scheduler.isExecutorServiceSet()) {
+      scheduler.incrementScheduledItems();
+    }
+    sweeper = scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sweep(System.nanoTime());
+        } catch (final RuntimeException e) {
+          LOGGER.error("{} could not pass on repeat counts", getName(), e);
+        }
+      }
+    }, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    super.start();
+  }
+
+  @Override
+  public boolean stop(final long timeout, final TimeUnit timeUnit) {
+    setStopping();
+    if (sweeper != null) {
+      sweeper.cancel(false);
+    }
+    for (final Map.Entry<Integer, Window> entry : windows.entrySet()) {
+      if (windows.remove(entry.getKey(), entry.getValue())) {
+        emitRepeats(entry.getValue());
+      }
+    }
+    super.stop(timeout, timeUnit, false);
+    setStopped();
+    return true;
+  }
+
+  @Override
+  public void append(final LogEvent event) {
+    final long now = System.nanoTime();
+    final Message message = event.getMessage();
+    if (!(message instanceof FormattedDataMessage)) {
+      forward(event);
+      return;
+    }
+    final Window[] ended = new Window[1];
+    final boolean[] started = new boolean[1];
+    final FormattedDataMessage data = (FormattedDataMessage) message;
+    windows.compute(data.hashCode(), (hash, existing) -> {
+      if (existing != null && now - existing.startNanos < windowNanos && existing.message.equals(data)) {
+        existing.repeats++;
+        return existing;
+      }
+      ended[0] = existing;
+      started[0] = true;
+      // the event's region may be released downstream, while repeats are still compared with the message
+      return new Window(event.toImmutable(), data.detach(), now);
+    });
+    if (ended[0] != null) {
+      emitRepeats(ended[0]);
+    }
+    if (started[0]) {
+      forward(event);
+    }
+  }
+
+  private void sweep(final long now) {
+    for (final Map.Entry<Integer, Window> entry : windows.entrySet()) {
+      final Window window = entry.getValue();
+      if (now - window.startNanos >= windowNanos && windows.remove(entry.getKey(), window)) {
+        emitRepeats(window);
+      }
+    }
+  }
+
+  private void emitRepeats(final Window window) {
+    if (window.repeats == 0) {
+      return;
+    }
+    final FormattedDataMessage repeated =
+        window.message.newInstance(window.message.copyFields()).with(countKey, window.repeats);
+    forward(new Log4jLogEvent.Builder(window.first)
+        .setMessage(repeated)
+        .setTimeMillis(System.currentTimeMillis())
+        .build());
+  }
+
+  private void forward(final LogEvent event) {
+    for (final AppenderControl control : appenders) {
+      control.callAppender(event);
+    }
+  }
+
+  @PluginBuilderFactory
+  public static <B extends Builder<B>> B newBuilder() {
+    return new Builder<B>().asBuilder();
+  }
+
+  public static class Builder<B extends Builder<B>> extends AbstractAppender.Builder<B>
+      implements org.apache.logging.log4j.core.util.Builder<CoalescingAppender> {
+
+    @PluginElement("AppenderRef")
+    @Required(message = "No appender references provided to Coalesce")
+    private AppenderRef[] appenderRefs;
+
+    @PluginBuilderAttribute
+    private long windowMillis = DEFAULT_WINDOW_MILLIS;
+
+    @PluginBuilderAttribute
+    private String countKey = DEFAULT_COUNT_KEY;
+
+    public B setAppenderRefs(final AppenderRef... appenderRefs) {
+      this.appenderRefs = appenderRefs;
+      return asBuilder();
+    }
+
+    public B setWindowMillis(final long windowMillis) {
+      this.windowMillis = windowMillis;
+      return asBuilder();
+    }
+
+    public B setCountKey(final String countKey) {
+      this.countKey = countKey;
+      return asBuilder();
+    }
+
+    @Override
+    public CoalescingAppender build() {
+      FormattedDataMessage.validateKey(countKey, FormattedDataMessage.MAX_LENGTH);
+      if (windowMillis <= 0) {
+        throw new IllegalArgumentException("windowMillis must be positive: " + windowMillis);
+      }
+      return new CoalescingAppender(getName(), getFilter(), isIgnoreExceptions(), getConfiguration(), appenderRefs,
+          windowMillis, countKey);
+    }
+  }
+}
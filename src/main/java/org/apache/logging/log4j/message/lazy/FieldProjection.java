@@ -0,0 +1,91 @@
+package org.apache.logging.log4j.message.lazy;
+
+import java.util.BitSet;
+
+/**
+ * Selects the data fields a {@link FormattedDataMessage} renders, so that lazy values no sink outputs are never
+ * evaluated. A projection either includes or excludes a list of keys; the type, id and message are always rendered.
+ *
+ * <p>Every projection belongs to a {@link FieldProjections} scope, which gives every key its projections name an
+ * index; projections are bit sets over those indexes. Messages map their keys to indexes once per scope, and share
+ * the mapping with other messages of the same template, so testing a field against any number of projections costs
+ * no string comparisons.</p>
+ *
+ * <p>Projections are selected per layout with a {@code fields=<name>} option, e.g. {@code %fdm{JSON}{fields=console}}
+ * or {@code %m{JSON}{fields=console}}, or per format by registering a projection under the
+ * {@link FormattedDataMessage.Format} name. The static methods of this class work on the
+ * {@link FieldProjections#getDefault() default} scope.</p>
+ */
+public final class FieldProjection {
+  /** Renders every field. */
+  public static final FieldProjection ALL = new FieldProjection(null, new BitSet(), false);
+
+  private final FieldProjections scope;
+  private final BitSet keys;
+  private final boolean include;
+
+  FieldProjection(final FieldProjections scope, final BitSet keys, final boolean include) {
+    this.scope = scope;
+    this.keys = keys;
+    this.include = include;
+  }
+
+  /**
+   * Creates a projection of the default scope rendering only the specified keys.
+   * @param keys The keys to render.
+   * @return the projection.
+   */
+  public static FieldProjection include(final String... keys) {
+    return FieldProjections.getDefault().include(keys);
+  }
+
+  /**
+   * Creates a projection of the default scope rendering every key but the specified ones.
+   * @param keys The keys not to render.
+   * @return the projection.
+   */
+  public static FieldProjection exclude(final String... keys) {
+    return FieldProjections.getDefault().exclude(keys);
+  }
+
+  /**
+   * Registers a named projection in the default scope.
+   * @param name The name of the projection.
+   * @param projection The projection.
+   * @see FieldProjections#register(String, FieldProjection)
+   */
+  public static void register(final String name, final FieldProjection projection) {
+    FieldProjections.getDefault().register(name, projection);
+  }
+
+  /**
+   * Returns the projection registered or configured under a name in the default scope.
+   * @param name The name of the projection.
+   * @return the projection, or {@link #ALL} if there is none.
+   * @see FieldProjections#forName(String)
+   */
+  public static FieldProjection forName(final String name) {
+    return FieldProjections.getDefault().forName(name);
+  }
+
+  /**
+   * Returns true if this projection renders the specified key.
+   * @param key The key.
+   * @return true if the field is rendered.
+   */
+  public boolean includes(final String key) {
+    return this == ALL || includes(scope.keyIndex(key));
+  }
+
+  boolean includes(final int keyIndex) {
+    return keyIndex >= 0 ? keys.get(keyIndex) == include : !include;
+  }
+
+  /**
+   * Returns the scope the projection's key indexes belong to.
+   * @return the scope, or null for {@link #ALL}.
+   */
+  FieldProjections scope() {
+    return scope;
+  }
+}
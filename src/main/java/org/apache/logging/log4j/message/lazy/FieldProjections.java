@@ -0,0 +1,235 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.util.PropertiesUtil;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The scope of a set of {@link FieldProjection}s: the index given to every key a projection of the scope names, the
+ * named projections and the projections selected by {@code fields=<name>} options. Projections of one scope are bit
+ * sets over the same key indexes, so a message resolves its keys once per scope rather than once per projection.
+ *
+ * <p>Each {@link Configuration} has a scope of its own, which reads named projections from the configuration's
+ * properties before the system properties and goes away with the configuration; the layouts and converters of a
+ * configuration use it. Projections created without a scope, and those selected by message options such as
+ * {@code %m{JSON}{fields=console}}, which cannot reach a configuration, belong to the {@link #getDefault() default}
+ * scope. So do the format defaults applied by {@code %m}, {@link FormattedDataMessage#getFormattedMessage()} and
+ * {@code asString} without a projection: a projection configured under a format name in a configuration's
+ * properties applies to {@code %fdm} and the layouts, but {@code %m} only sees one set in the system properties or
+ * registered in the default scope.</p>
+ */
+public final class FieldProjections {
+  private static final String COMPONENT_KEY = FieldProjections.class.getName();
+  private static final String OPTION_PREFIX = "fields=";
+  private static final String PROPERTY_PREFIX = "log4j.formattedDataMessage.fields.";
+  private static final FieldProjections DEFAULT = new FieldProjections(null);
+
+  private final Map<String, String> properties;
+  private final ConcurrentHashMap<String, Integer> keyIndexes = new ConcurrentHashMap<>();
+  private volatile int keyGeneration;
+
+  private final ConcurrentHashMap<String, FieldProjection> named = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, FieldProjection> options = new ConcurrentHashMap<>();
+  private volatile FieldProjection[] formatDefaults;
+
+  /**
+   * The indexes of a list of keys, resolved in one scope and valid until the scope gives a new key an index.
+   */
+  static final class KeyIndexes {
+    final FieldProjections scope;
+    final int generation;
+    final String[] keys;
+    final int[] indexes;
+
+    private KeyIndexes(final FieldProjections scope, final int generation, final String[] keys,
+        final int[] indexes) {
+      this.scope = scope;
+      this.generation = generation;
+      this.keys = keys;
+      this.indexes = indexes;
+    }
+
+    boolean isCurrent(final FieldProjections scope) {
+      return this.scope == scope && generation == scope.keyGeneration;
+    }
+  }
+
+  private FieldProjections(final Map<String, String> properties) {
+    this.properties = properties;
+  }
+
+  /**
+   * Returns the scope of projections that belong to no configuration.
+   * @return the default scope.
+   */
+  public static FieldProjections getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Returns the scope of a configuration, creating it on first use.
+   * @param config The configuration, or null for the default scope.
+   * @return the scope.
+   */
+  public static FieldProjections of(final Configuration config) {
+    if (config == null) {
+      return DEFAULT;
+    }
+    final FieldProjections scope = config.getComponent(COMPONENT_KEY);
+    if (scope != null) {
+      return scope;
+    }
+    config.addComponent(COMPONENT_KEY, new FieldProjections(config.getProperties()));
+    return config.getComponent(COMPONENT_KEY);
+  }
+
+  /**
+   * Creates a projection of this scope rendering only the specified keys.
+   * @param keys The keys to render.
+   * @return the projection.
+   */
+  public FieldProjection include(final String... keys) {
+    return new FieldProjection(this, indexesOf(keys), true);
+  }
+
+  /**
+   * Creates a projection of this scope rendering every key but the specified ones.
+   * @param keys The keys not to render.
+   * @return the projection.
+   */
+  public FieldProjection exclude(final String... keys) {
+    return new FieldProjection(this, indexesOf(keys), false);
+  }
+
+  /**
+   * Registers a named projection, replacing any projection of the same name. Registering a projection under a
+   * {@link FormattedDataMessage.Format} name makes it the default for that format.
+   * @param name The name of the projection.
+   * @param projection The projection, which must belong to this scope or be {@link FieldProjection#ALL}.
+   */
+  public void register(final String name, final FieldProjection projection) {
+    if (projection != FieldProjection.ALL && projection.scope() != this) {
+      throw new IllegalArgumentException("The projection " + name + " belongs to another scope");
+    }
+    named.put(name, projection);
+    options.clear();
+    formatDefaults = null;
+  }
+
+  /**
+   * Returns the projection registered or configured under a name. Configured projections are read from the
+   * {@code log4j.formattedDataMessage.fields.<name>.include} or {@code .exclude} property, which holds comma
+   * separated keys.
+   * @param name The name of the projection.
+   * @return the projection, or {@link FieldProjection#ALL} if there is none.
+   */
+  public FieldProjection forName(final String name) {
+    final FieldProjection projection = named.get(name);
+    if (projection != null) {
+      return projection;
+    }
+    final FieldProjection configured = fromProperties(name);
+    final FieldProjection existing = named.putIfAbsent(name, configured);
+    return existing != null ? existing : configured;
+  }
+
+  /**
+   * Returns the projection selected by a {@code fields=<name>} option.
+   * @param option A format option.
+   * @return the projection, or null if the option does not select one.
+   */
+  FieldProjection forOption(final String option) {
+    final FieldProjection projection = options.get(option);
+    if (projection != null || !option.startsWith(OPTION_PREFIX)) {
+      return projection;
+    }
+    final FieldProjection selected = forName(option.substring(OPTION_PREFIX.length()));
+    final FieldProjection existing = options.putIfAbsent(option, selected);
+    return existing != null ? existing : selected;
+  }
+
+  /**
+   * Returns the default projection of a format.
+   * @param format The format, or null for the structured-only format.
+   * @return the projection; {@link FieldProjection#ALL} unless one is registered or configured under the format's
+   *         name.
+   */
+  FieldProjection forFormat(final FormattedDataMessage.Format format) {
+    if (format == null) {
+      return FieldProjection.ALL;
+    }
+    FieldProjection[] defaults = formatDefaults;
+    if (defaults == null) {
+      final FormattedDataMessage.Format[] formats = FormattedDataMessage.Format.values();
+      defaults = new FieldProjection[formats.length];
+      for (int i = 0; i < formats.length; i++) {
+        defaults[i] = forName(formats[i].name());
+      }
+      formatDefaults = defaults;
+    }
+    return defaults[format.ordinal()];
+  }
+
+  /**
+   * Returns the index of a key in this scope, or -1 if no projection of the scope names it.
+   * @param key The key.
+   * @return the index.
+   */
+  int keyIndex(final String key) {
+    final Integer index = keyIndexes.get(key);
+    return index != null ? index : -1;
+  }
+
+  /**
+   * Resolves the indexes of a list of keys.
+   * @param keys The keys, which the result holds on to.
+   * @return the indexes.
+   */
+  KeyIndexes resolve(final String[] keys) {
+    // read the generation first, so that a key given an index meanwhile makes the result stale
+    final int generation = keyGeneration;
+    final int[] indexes = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      indexes[i] = keyIndex(keys[i]);
+    }
+    return new KeyIndexes(this, generation, keys, indexes);
+  }
+
+  private synchronized BitSet indexesOf(final String[] keys) {
+    final BitSet indexes = new BitSet();
+    for (final String key : keys) {
+      Integer index = keyIndexes.get(key);
+      if (index == null) {
+        index = keyIndexes.size();
+        keyIndexes.put(key, index);
+        keyGeneration++;
+      }
+      indexes.set(index);
+    }
+    return indexes;
+  }
+
+  private FieldProjection fromProperties(final String name) {
+    final String included = property(PROPERTY_PREFIX + name + ".include");
+    if (included != null) {
+      return include(split(included));
+    }
+    final String excluded = property(PROPERTY_PREFIX + name + ".exclude");
+    if (excluded != null) {
+      return exclude(split(excluded));
+    }
+    return FieldProjection.ALL;
+  }
+
+  private String property(final String name) {
+    final String value = properties != null ? properties.get(name) : null;
+    return value != null ? value : PropertiesUtil.getProperties().getStringProperty(name);
+  }
+
+  private static String[] split(final String keys) {
+    return keys.trim().split("\\s*,\\s*");
+  }
+}
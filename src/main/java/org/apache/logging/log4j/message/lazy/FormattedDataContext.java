@@ -0,0 +1,288 @@
+package org.apache.logging.log4j.message.lazy;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable set of fields shared by many {@link FormattedDataMessage}s, such as the service, device, account or
+ * request id. Keys are validated once when the context is built, and each format renders the fields at most once;
+ * messages referencing the context splice the cached text of each run of context fields that sorts between two of
+ * their own keys, and only render their own entries. Fields rendered through a projection other than
+ * {@link FieldProjection#ALL} are appended one at a time, from their cached values.
+ */
+public final class FormattedDataContext implements Serializable {
+  private static final long serialVersionUID = 2748239585913066436L;
+
+  /** A context without any fields. */
+  public static final FormattedDataContext EMPTY = new FormattedDataContext(new String[0], new Object[0],
+      FormattedDataMessage.MAX_LENGTH);
+
+  private final String[] keys;
+  private final Object[] values;
+  private final int maxLength;
+
+  private transient volatile String[] renderedValues;
+  private transient volatile Fragment[] fragments;
+  private transient volatile FieldProjections.KeyIndexes keyIndexes;
+
+  /**
+   * Every field rendered in one style, with the offset at which each field starts.
+   */
+  private static final class Fragment {
+    final String text;
+    final int[] offsets;
+
+    Fragment(final String text, final int[] offsets) {
+      this.text = text;
+      this.offsets = offsets;
+    }
+  }
+
+  private FormattedDataContext(final String[] keys, final Object[] values, final int maxLength) {
+    this.keys = keys;
+    this.values = values;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Creates a context from a map of fields, validating keys as {@link FormattedDataMessage} would (max 32
+   * characters).
+   * @param data The fields shared by every message referencing this context.
+   * @return the context.
+   */
+  public static FormattedDataContext of(final Map<String, Object> data) {
+    return EMPTY.with(data, FormattedDataMessage.MAX_LENGTH);
+  }
+
+  /**
+   * Creates a context from a map of fields, validating keys as {@link FormattedDataMessage} would.
+   * @param data The fields shared by every message referencing this context.
+   * @param maxLength The maximum length of keys.
+   * @return the context.
+   */
+  public static FormattedDataContext of(final Map<String, Object> data, final int maxLength) {
+    return EMPTY.with(data, maxLength);
+  }
+
+  /**
+   * Derives a new context holding this context's fields plus {@code data}. Fields in {@code data} replace fields of
+   * the same name in this context, and their keys are validated against the maximum length this context was built
+   * with. This context is left untouched.
+   * @param data The additional fields.
+   * @return the derived context.
+   */
+  public FormattedDataContext with(final Map<String, Object> data) {
+    return with(data, maxLength);
+  }
+
+  private FormattedDataContext with(final Map<String, Object> data, final int maxLength) {
+    final TreeMap<String, Object> merged = new TreeMap<>();
+    for (int i = 0; i < keys.length; i++) {
+      merged.put(keys[i], values[i]);
+    }
+    for (final Map.Entry<String, Object> entry : data.entrySet()) {
+      FormattedDataMessage.validateKey(entry.getKey(), maxLength);
+      merged.put(entry.getKey(), LazyMap.capture(entry.getValue()));
+    }
+    return new FormattedDataContext(merged.keySet().toArray(new String[0]), merged.values().toArray(), maxLength);
+  }
+
+  /**
+   * Returns the number of fields in this context.
+   * @return the number of fields.
+   */
+  public int size() {
+    return keys.length;
+  }
+
+  /**
+   * Returns the key at the specified index; keys are sorted.
+   * @param index The index of the field.
+   * @return the key.
+   */
+  public String getKeyAt(final int index) {
+    return keys[index];
+  }
+
+  /**
+   * Returns the value at the specified index.
+   * @param index The index of the field.
+   * @return the value.
+   */
+  public Object getValueAt(final int index) {
+    return values[index];
+  }
+
+  /**
+   * Returns the index of the specified key, or a negative number if this context does not contain it.
+   * @param key The key to look for.
+   * @return the index of the key.
+   */
+  public int indexOf(final String key) {
+    return Arrays.binarySearch(keys, key);
+  }
+
+  /**
+   * Returns true if this context contains the specified key.
+   * @param key The key to look for.
+   * @return true if the key is present.
+   */
+  public boolean containsKey(final String key) {
+    return indexOf(key) >= 0;
+  }
+
+  /**
+   * Returns the value of the specified key, or null if this context does not contain it.
+   * @param key The key to look for.
+   * @return the value.
+   */
+  public Object getValue(final String key) {
+    final int index = indexOf(key);
+    return index < 0 ? null : values[index];
+  }
+
+  /**
+   * Returns the value at the specified index, rendered as {@link FormattedDataMessage} renders values. Each value is
+   * rendered once, when it is first asked for, so a lookup of one field does not evaluate the lazy values of others.
+   * @param index The index of the field.
+   * @return the rendered value.
+   */
+  String getRenderedValueAt(final int index) {
+    String[] rendered = renderedValues;
+    if (rendered == null) {
+      rendered = new String[values.length];
+      renderedValues = rendered;
+    }
+    String value = rendered[index];
+    if (value == null) {
+      final StringBuilder sb = new StringBuilder();
+      FormattedDataMessage.deepToString(values[index], sb);
+      value = sb.toString();
+      rendered[index] = value;
+    }
+    return value;
+  }
+
+  /**
+   * Appends every field in the specified style, from a rendering cached per style.
+   * @param style The style of the fields.
+   * @param first Whether nothing has been appended to the fields yet.
+   * @param sb The StringBuilder to append to.
+   * @return true if anything was appended.
+   */
+  boolean appendFields(final FormattedDataMessage.FieldStyle style, final boolean first, final StringBuilder sb) {
+    return appendFields(style, 0, keys.length, first, sb);
+  }
+
+  /**
+   * Appends the fields from index {@code from} up to, but not including, index {@code to} in the specified style,
+   * from a rendering of every field cached per style.
+   * @param style The style of the fields.
+   * @param from The index of the first field.
+   * @param to The index after the last field.
+   * @param first Whether nothing has been appended to the fields yet.
+   * @param sb The StringBuilder to append to.
+   * @return true if anything was appended.
+   */
+  boolean appendFields(final FormattedDataMessage.FieldStyle style, final int from, final int to, final boolean first,
+      final StringBuilder sb) {
+    if (from >= to) {
+      return false;
+    }
+    final Fragment fragment = fragment(style);
+    int start = fragment.offsets[from];
+    if (style == FormattedDataMessage.FieldStyle.STRUCTURED) {
+      // only the fields after the first are rendered with a separator
+      if (from == 0 && !first) {
+        sb.append(' ');
+      } else if (from > 0 && first) {
+        start++;
+      }
+    }
+    final int length = sb.length() + fragment.offsets[to] - start;
+    if (length > sb.capacity()) {
+      // grow for the fields that follow too, rather than to the exact length of the splice
+      sb.ensureCapacity(2 * length);
+    }
+    sb.append(fragment.text, start, fragment.offsets[to]);
+    return true;
+  }
+
+  private Fragment fragment(final FormattedDataMessage.FieldStyle style) {
+    Fragment[] cached = fragments;
+    if (cached == null) {
+      cached = new Fragment[FormattedDataMessage.FieldStyle.values().length];
+      fragments = cached;
+    }
+    Fragment fragment = cached[style.ordinal()];
+    if (fragment == null) {
+      final StringBuilder rendered = new StringBuilder();
+      final int[] offsets = new int[keys.length + 1];
+      for (int i = 0; i < keys.length; i++) {
+        offsets[i] = rendered.length();
+        appendField(style, i, i == 0, rendered);
+      }
+      offsets[keys.length] = rendered.length();
+      fragment = new Fragment(rendered.toString(), offsets);
+      cached[style.ordinal()] = fragment;
+    }
+    return fragment;
+  }
+
+  /**
+   * Appends a single field in the specified style.
+   * @param style The style of the field.
+   * @param index The index of the field.
+   * @param first Whether nothing has been appended to the fields yet.
+   * @param sb The StringBuilder to append to.
+   */
+  void appendField(final FormattedDataMessage.FieldStyle style, final int index, final boolean first,
+      final StringBuilder sb) {
+    FormattedDataMessage.appendField(style, first, keys[index], getRenderedValueAt(index), sb);
+  }
+
+  /**
+   * Returns true if {@code projection} renders the field at the specified index.
+   * @param index The index of the field.
+   * @param projection The fields to render.
+   * @return true if the field is rendered.
+   */
+  boolean isIncluded(final int index, final FieldProjection projection) {
+    return projection == FieldProjection.ALL || projection.includes(keyIndexAt(index, projection.scope()));
+  }
+
+  private int keyIndexAt(final int index, final FieldProjections scope) {
+    FieldProjections.KeyIndexes resolved = keyIndexes;
+    if (resolved == null || !resolved.isCurrent(scope)) {
+      resolved = scope.resolve(keys);
+      keyIndexes = resolved;
+    }
+    return resolved.indexes[index];
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    final FormattedDataContext that = (FormattedDataContext) o;
+    return Arrays.equals(keys, that.keys) && Arrays.equals(values, that.values);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(keys) + Arrays.hashCode(values);
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("FormattedDataContext[");
+    appendFields(FormattedDataMessage.FieldStyle.STRUCTURED, true, sb);
+    return sb.append(']').toString();
+  }
+}
@@ -0,0 +1,38 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.lookup.AbstractLookup;
+import org.apache.logging.log4j.core.lookup.StrLookup;
+import org.apache.logging.log4j.message.Message;
+
+/**
+ * Looks up a single field of the event's {@link FormattedDataMessage} without formatting the message, using
+ * {@link FormattedDataMessage#getField(String)}. Only the requested value is evaluated, so routing on
+ * {@code ${fdm:type}} or {@code ${fdm:device}} costs a map lookup:
+ *
+ * <pre>
+ * &lt;Routing name="Routing"&gt;
+ *   &lt;Routes pattern="$${fdm:type}"&gt;
+ *     ...
+ *   &lt;/Routes&gt;
+ * &lt;/Routing&gt;
+ * </pre>
+ *
+ * Returns null for events without a FormattedDataMessage, and for lookups made without an event.
+ */
+@Plugin(name = "fdm", category = StrLookup.CATEGORY)
+public class FormattedDataLookup extends AbstractLookup {
+
+  @Override
+  public String lookup(final LogEvent event, final String key) {
+    if (event == null) {
+      return null;
+    }
+    final Message message = event.getMessage();
+    if (!(message instanceof FormattedDataMessage)) {
+      return null;
+    }
+    return ((FormattedDataMessage) message).getField(key);
+  }
+}
@@ -1,52 +1,38 @@
 package org.apache.logging.log4j.message.lazy;
 
 import it.unimi.dsi.fastutil.objects.Object2ObjectArrayMap;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.message.AsynchronouslyFormattable;
 import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.message.ParameterizedMessage;
 import org.apache.logging.log4j.message.StructuredDataId;
+import org.apache.logging.log4j.util.BiConsumer;
 import org.apache.logging.log4j.util.Chars;
 import org.apache.logging.log4j.util.EnglishEnums;
 import org.apache.logging.log4j.util.IndexedReadOnlyStringMap;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
 import org.apache.logging.log4j.util.StringBuilders;
+import org.apache.logging.log4j.util.TriConsumer;
 
-import java.lang.reflect.InaccessibleObjectException;
-import java.lang.reflect.Method;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Objects;
+import java.util.TreeMap;
 
 @AsynchronouslyFormattable
 public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Object> {
   private static final long serialVersionUID = -598540466042791478L;
 
-  private static final Pattern RE = Pattern.compile(
-      "\\\\(.)" +         // Treat any character after a backslash literally
-          "|" +
-          "(%\\(([^)]+)\\))"  // Look for %(keys) to replace
-      );
-  private static final Logger logger = LogManager.getLogger(FormattedDataMessage.class.getName());
-
-  private static Class<?> formatterClass;
-  private static Method recursiveDeepToStringMethod;
-  private Object2ObjectArrayMap<String, String> cachedStringMap;
-
-  static {
-    try {
-      formatterClass = Class.forName("org.apache.logging.log4j.message.ParameterFormatter");
-      Method[] methods = formatterClass.getDeclaredMethods();
-      recursiveDeepToStringMethod = Arrays.stream(methods).filter(m -> m.getName() == "recursiveDeepToString").findFirst().get();
-      recursiveDeepToStringMethod.setAccessible(true);
-    } catch (InaccessibleObjectException re) {
-      logger.fatal(re);
-    } catch (SecurityException se) {
-      logger.fatal("Can't make recursiveDeepToString public!", se);
-    } catch (ClassNotFoundException cnfe) {
-      logger.fatal("Can't load ParameterFormatter class!", cnfe);
-    }
-  }
+  private Object2ObjectArrayMap<String, String> cachedStringMap = new Object2ObjectArrayMap<>();
+  private transient int hash;
+  private transient volatile FieldProjections.KeyIndexes keyIndexes;
+  private transient volatile ArenaRegion region;
+  private transient volatile IndexedReadOnlyStringMap layeredData;
 
   protected synchronized void recursiveDeepToString(Object value, StringBuilder sb, String cacheKey) {
     if (cachedStringMap.containsKey(cacheKey)) {
@@ -54,30 +40,58 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
       return;
     }
 
-    try {
-      int start = sb.length();
-      recursiveDeepToStringMethod.invoke(null, value, sb, null);
-      cachedStringMap.put(cacheKey, sb.substring(start));
-    } catch (ReflectiveOperationException e) {
-      logger.fatal("Can't get at ParameterFormatter.recursiveDeepToString()", e);
+    final String rendered = String.valueOf(ParameterizedMessage.deepToString(value));
+    cachedStringMap.put(cacheKey, rendered);
+    sb.append(rendered);
+  }
+
+  private synchronized String renderValue(final Object value, final String cacheKey) {
+    String rendered = cachedStringMap.get(cacheKey);
+    if (rendered == null) {
+      rendered = String.valueOf(ParameterizedMessage.deepToString(value));
+      cachedStringMap.put(cacheKey, rendered);
     }
+    return rendered;
   }
 
-  private String formatValueMatch(Map<String, Object> values, String key, Object defaultVal) {
-    StringBuilder sb = new StringBuilder();
-    recursiveDeepToString(values.getOrDefault(key, defaultVal), sb, key);
-    return sb.toString();
+  static void deepToString(Object value, StringBuilder sb) {
+    sb.append(ParameterizedMessage.deepToString(value));
+  }
+
+  private void appendValueMatch(ReadOnlyStringMap values, String key, String reference, StringBuilder sb) {
+    final boolean present = values.containsKey(key);
+    if (!present) {
+      if (context != null) {
+        int index = context.indexOf(key);
+        if (index >= 0) {
+          sb.append(context.getRenderedValueAt(index));
+          return;
+        }
+      }
+      final ArenaRegion arenaFields = region;
+      if (arenaFields != null && arenaFields.appendValue(key, sb)) {
+        return;
+      }
+    }
+    recursiveDeepToString(present ? values.getValue(key) : reference, sb, key);
   }
 
   protected String formatMessage(String fmt, Map<String, Object> values) {
-    return RE.matcher(fmt).replaceAll(match ->
-    match.group(1) != null ?
-        match.group(1) :
-          formatValueMatch(values, match.group(3), match.group(2))
-        );
+    final StringBuilder sb = new StringBuilder(fmt.length() + 16);
+    appendMessage(MessageTemplate.of(fmt), new SortedArrayStringMap(values), sb);
+    return sb.toString();
+  }
+
+  private void appendMessage(MessageTemplate template, ReadOnlyStringMap values, StringBuilder sb) {
+    final int size = template.size();
+    for (int i = 0; i < size; i++) {
+      sb.append(template.literalAt(i));
+      appendValueMatch(values, template.keyAt(i), template.referenceAt(i), sb);
+    }
+    sb.append(template.literalAt(size));
   }
 
-  private static final int MAX_LENGTH = 32;
+  static final int MAX_LENGTH = 32;
   private static final int HASHVAL = 31;
   private static final List<String> RESERVED_KEYS = Arrays.asList("type", "id", "message");
 
@@ -87,6 +101,8 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
 
   private String type;
 
+  private FormattedDataContext context;
+
   private final int maxLength;
 
   /**
@@ -133,6 +149,23 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
     }
   }
 
+  /**
+   * The ways a single field is rendered.
+   */
+  enum FieldStyle {
+    /** {@code k="v"}, separated by spaces. */
+    STRUCTURED,
+
+    /** RFC 5424 PARAMs: {@code  k="v"} with {@code "}, {@code \} and {@code ]} escaped in the value. */
+    PARAMS,
+
+    /** JSON members: {@code , "k":"v"}. */
+    JSON,
+
+    /** XML {@code Entry} elements. */
+    XML
+  }
+
   /**
    * Creates a FormattedDataMessage using an ID (max 32 characters), message, and type (max 32 characters).
    * @param id The String id.
@@ -184,11 +217,7 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
    */
   public FormattedDataMessage(final String id, final String msg, final String type,
       final Map<String, Object> data, final int maxLength) {
-    super(data);
-    this.id = new StructuredDataId(id, null, null, maxLength);
-    this.message = msg;
-    this.type = type;
-    this.maxLength = maxLength;
+    this(null, new StructuredDataId(id, null, null, maxLength), msg, type, LazyMap.captureAll(data), maxLength);
     this.cachedStringMap = new Object2ObjectArrayMap<>(data.size() + 2);
   }
 
@@ -242,24 +271,76 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
    */
   public FormattedDataMessage(final StructuredDataId id, final String msg, final String type,
       final Map<String, Object> data, final int maxLength) {
-    super(data);
+    this(null, id, msg, type, LazyMap.captureAll(data), maxLength);
+  }
+
+  /**
+   * Creates a FormattedDataMessage layered over a shared context, using an ID (max 32 characters), message, type
+   * (max 32 characters), and the entries this message adds to the context. Entries replace context fields of the
+   * same name.
+   * @param context The shared fields.
+   * @param id The String id.
+   * @param msg The message.
+   * @param type The message type.
+   * @param data The StructuredData map added to the context.
+   */
+  public FormattedDataMessage(final FormattedDataContext context, final String id, final String msg,
+      final String type, final Map<String, Object> data) {
+    this(context, new StructuredDataId(id, null, null, MAX_LENGTH), msg, type, LazyMap.captureAll(data), MAX_LENGTH);
+    this.cachedStringMap = new Object2ObjectArrayMap<>(data.size() + 2);
+  }
+
+  /**
+   * Creates a FormattedDataMessage whose captured data is encoded into the calling thread's {@link MessageArena} if
+   * it has one.
+   * @param context The shared fields, or null.
+   * @param id The StructuredDataId.
+   * @param msg The message.
+   * @param type The message type.
+   * @param data The StructuredData map, already captured.
+   * @param maxLength The maximum length of keys;
+   */
+  private FormattedDataMessage(final FormattedDataContext context, final StructuredDataId id, final String msg,
+      final String type, final Map<String, Object> data, final int maxLength) {
+    this(context, id, msg, type, data, MessageArena.encode(data, context), maxLength);
+  }
+
+  /**
+   * Creates a FormattedDataMessage whose data is split between the heap and a region of the calling thread's
+   * {@link MessageArena}.
+   * @param context The shared fields, or null.
+   * @param id The StructuredDataId.
+   * @param msg The message.
+   * @param type The message type.
+   * @param data The StructuredData map, already captured.
+   * @param region The fields of {@code data} held in the arena, or null to keep all of them on the heap.
+   * @param maxLength The maximum length of keys;
+   */
+  private FormattedDataMessage(final FormattedDataContext context, final StructuredDataId id, final String msg,
+      final String type, final Map<String, Object> data, final ArenaRegion region, final int maxLength) {
+    super(region != null ? region.remainder() : data);
     this.id = id;
     this.message = msg;
     this.type = type;
+    this.context = context;
     this.maxLength = maxLength;
+    if (region != null) {
+      region.adopt(this);
+      this.region = region;
+    }
   }
 
-
   /**
    * Constructor based on a FormattedDataMessage.
    * @param msg The FormattedDataMessage.
    * @param map The StructuredData map.
    */
   private FormattedDataMessage(final FormattedDataMessage msg, final Map<String, Object> map) {
-    super(map);
+    super(LazyMap.captureAll(map));
     this.id = msg.id;
     this.message = msg.message;
     this.type = msg.type;
+    this.context = msg.context;
     this.maxLength = MAX_LENGTH;
   }
 
@@ -287,12 +368,76 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
     return id;
   }
 
+  /**
+   * Returns the context this message is layered over.
+   * @return the FormattedDataContext, or null.
+   */
+  public FormattedDataContext getContext() {
+    return context;
+  }
+
+  /**
+   * Returns the message data, including the fields of the context that the message does not replace. Like every read
+   * of the whole map, this moves fields held in a {@link MessageArena} onto the heap and releases the region.
+   * @return the message data.
+   */
+  @Override
+  public Map<String, Object> getData() {
+    final IndexedReadOnlyStringMap data = getIndexedReadOnlyStringMap();
+    final TreeMap<String, Object> result = new TreeMap<>();
+    for (int i = 0; i < data.size(); i++) {
+      result.put(data.getKeyAt(i), data.getValueAt(i));
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * Returns a single field as a String without formatting the rest of the message. {@code type}, {@code id} and
+   * {@code message} return the message type, id name and (uninterpolated) message; other keys are looked up in the
+   * data and then in the context. Only the requested value is evaluated.
+   * @param key The name of the field.
+   * @return the field, or null if the message has no such field.
+   */
+  public String getField(final String key) {
+    switch (key) {
+      case "type":
+        return type;
+      case "id":
+        return id != null ? id.getName() : null;
+      case "message":
+        return message;
+      default:
+        break;
+    }
+    final ArenaRegion arenaFields = region;
+    final IndexedReadOnlyStringMap data = heapData();
+    if (data.containsKey(key)) {
+      final StringBuilder sb = new StringBuilder();
+      recursiveDeepToString(data.getValue(key), sb, key);
+      return sb.toString();
+    }
+    if (arenaFields != null) {
+      final StringBuilder sb = new StringBuilder();
+      if (arenaFields.appendValue(key, sb)) {
+        return sb.toString();
+      }
+    }
+    if (context != null) {
+      final int index = context.indexOf(key);
+      if (index >= 0) {
+        return context.getRenderedValueAt(index);
+      }
+    }
+    return null;
+  }
+
   /**
    * Sets the id from a String. This ID can be at most 32 characters long.
    * @param id The String id.
    */
   protected void setId(final String id) {
     this.id = new StructuredDataId(id, null, null);
+    this.hash = 0;
   }
 
   /**
@@ -301,6 +446,7 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
    */
   protected void setId(final StructuredDataId id) {
     this.id = id;
+    this.hash = 0;
   }
 
   /**
@@ -316,6 +462,7 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
       throw new IllegalArgumentException("structured data type exceeds maximum length of 32 characters: " + type);
     }
     this.type = type;
+    this.hash = 0;
   }
 
   @Override
@@ -325,7 +472,7 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
 
   @Override
   public void formatTo(String[] formats, StringBuilder buffer) {
-    asString(getFormat(formats), null, buffer);
+    asString(getFormat(formats), null, getProjection(formats), buffer);
   }
 
   /**
@@ -334,11 +481,19 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
    */
   @Override
   public String getFormat() {
-    return formatMessage(message, getData());
+    if (message == null) {
+      return null;
+    }
+    // interpolate against the heap fields, the arena and the context where they are, without copying the data
+    final StringBuilder sb = new StringBuilder(message.length() + 16);
+    appendMessage(MessageTemplate.of(message), heapData(), sb);
+    return sb.toString();
   }
 
   protected void setMessageFormat(final String msg) {
     this.message = msg;
+    this.hash = 0;
+    invalidateAll();
   }
 
   /**
@@ -382,6 +537,26 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
     return sb.toString();
   }
 
+  /**
+   * Formats the structured data as described in RFC 5424, rendering only the fields selected by a projection.
+   *
+   * @param format           "full" will include the type and message. null will return only the STRUCTURED-DATA as
+   *                         described in RFC 5424
+   * @param structuredDataId The SD-ID as described in RFC 5424. If null the value in the StructuredData
+   *                         will be used.
+   * @param projection       The fields to render. If null the default projection of the format in the
+   *                         {@link FieldProjections#getDefault() default} scope will be used; a message cannot
+   *                         reach the configuration it is logged through, so defaults registered or configured in
+   *                         a configuration's scope apply only to its layouts and {@code %fdm}.
+   * @return The formatted String.
+   */
+  public final String asString(final Format format, final StructuredDataId structuredDataId,
+      final FieldProjection projection) {
+    final StringBuilder sb = new StringBuilder();
+    asString(format, structuredDataId, projection, sb);
+    return sb.toString();
+  }
+
   /**
    * Formats the structured data as described in RFC 5424.
    *
@@ -392,6 +567,26 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
    * @param sb The StringBuilder to append the formatted message to.
    */
   public final void asString(final Format format, final StructuredDataId structuredDataId, final StringBuilder sb) {
+    asString(format, structuredDataId, null, sb);
+  }
+
+  /**
+   * Formats the structured data as described in RFC 5424, rendering only the fields selected by a projection.
+   *
+   * @param format           "full" will include the type and message. null will return only the STRUCTURED-DATA as
+   *                         described in RFC 5424
+   * @param structuredDataId The SD-ID as described in RFC 5424. If null the value in the StructuredData
+   *                         will be used.
+   * @param projection       The fields to render. If null the default projection of the format in the
+   *                         {@link FieldProjections#getDefault() default} scope will be used; a message cannot
+   *                         reach the configuration it is logged through, so defaults registered or configured in
+   *                         a configuration's scope apply only to its layouts and {@code %fdm}.
+   * @param sb The StringBuilder to append the formatted message to.
+   */
+  public final void asString(final Format format, final StructuredDataId structuredDataId,
+      final FieldProjection projection, final StringBuilder sb) {
+    final FieldProjection fields = projection != null ? projection
+        : FieldProjections.getDefault().forFormat(format);
     final boolean full = Format.FULL.equals(format);
     if (full) {
       final String myType = getType();
@@ -410,25 +605,25 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
       return;
     }
     if (Format.XML.equals(format)) {
-      asXml(sdId, message, sb);
+      asXml(sdId, message, fields, sb);
       return;
     }
     if (Format.INTERPOLATED_XML.equals(format)) {
-      asXml(sdId, getFormat(), sb);
+      asXml(sdId, getFormat(), fields, sb);
       return;
     }
     if (Format.JSON.equals(format)) {
-      asJson(sdId, message, sb);
+      asJson(sdId, message, fields, sb);
       return;
     }
     if (Format.INTERPOLATED_JSON.equals(format)) {
-      asJson(sdId, getFormat(), sb);
+      asJson(sdId, getFormat(), fields, sb);
       return;
     }
     sb.append('[');
     StringBuilders.appendValue(sb, sdId); // avoids toString if implements StringBuilderFormattable
     sb.append(' ');
-    appendMap(sb);
+    appendMap(sb, fields);
     sb.append(']');
     if (full) {
       final String msg = getFormat();
@@ -438,28 +633,214 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
     }
   }
 
+  @Override
+  protected void appendMap(final StringBuilder sb) {
+    appendMap(sb, FieldProjection.ALL);
+  }
+
+  protected void appendMap(final StringBuilder sb, final FieldProjection projection) {
+    appendFields(FieldStyle.STRUCTURED, projection, true, sb);
+  }
+
+  /**
+   * Appends the fields {@code projection} selects as RFC 5424 PARAMs, each preceded by a space, escaping {@code "},
+   * {@code \} and {@code ]} in the values as they are written. Used by {@link Rfc5424Writer}.
+   * @param sb The StringBuilder to append to.
+   * @param projection The fields to render.
+   * @param includeContext Whether to include the fields of the context.
+   * @return true if anything was appended.
+   */
+  boolean appendParams(final StringBuilder sb, final FieldProjection projection, final boolean includeContext) {
+    return appendFields(FieldStyle.PARAMS, projection, includeContext, sb);
+  }
+
+  /**
+   * Appends the context fields {@code projection} selects, and that the message does not replace, as RFC 5424
+   * PARAMs. Used by {@link Rfc5424Writer}.
+   * @param sb The StringBuilder to append to.
+   * @param projection The fields to render.
+   * @return true if anything was appended.
+   */
+  boolean appendContextParams(final StringBuilder sb, final FieldProjection projection) {
+    if (context == null || context.size() == 0) {
+      return false;
+    }
+    final IndexedReadOnlyStringMap data = heapData();
+    boolean appended = false;
+    int i = 0;
+    while (i < context.size()) {
+      if (isReplaced(context.getKeyAt(i), data) || !context.isIncluded(i, projection)) {
+        i++;
+      } else if (projection == FieldProjection.ALL) {
+        int end = i + 1;
+        while (end < context.size() && !isReplaced(context.getKeyAt(end), data)) {
+          end++;
+        }
+        appended |= context.appendFields(FieldStyle.PARAMS, i, end, false, sb);
+        i = end;
+      } else {
+        context.appendField(FieldStyle.PARAMS, i++, false, sb);
+        appended = true;
+      }
+    }
+    return appended;
+  }
+
+  /**
+   * Returns true if the message has a field of its own named {@code key}.
+   */
+  private boolean isReplaced(final String key, final IndexedReadOnlyStringMap data) {
+    final ArenaRegion arenaFields = region;
+    return data.containsKey(key) || arenaFields != null && arenaFields.containsKey(key);
+  }
+
+  /**
+   * Appends the fields {@code projection} selects in key order, merging the fields of the context with the message's
+   * own, which replace context fields of the same name. With {@link FieldProjection#ALL}, each run of context fields
+   * that sorts between two of the message's keys is spliced from the context's cached rendering.
+   * @return true if anything was appended.
+   */
+  private boolean appendFields(final FieldStyle style, final FieldProjection projection, final boolean includeContext,
+      final StringBuilder sb) {
+    final ArenaRegion arenaFields = region;
+    final IndexedReadOnlyStringMap data = heapData();
+    final int[] indexes = projection == FieldProjection.ALL ? null : keyIndexes(projection.scope());
+    final FormattedDataContext shared = includeContext && context != null && context.size() > 0 ? context : null;
+    final int contextSize = shared != null ? shared.size() : 0;
+    final int regionSize = arenaFields != null ? arenaFields.size() : 0;
+    int position = regionSize > 0 ? arenaFields.firstEntry() : 0;
+    boolean first = true;
+    int c = 0;
+    int r = 0;
+    int h = 0;
+    while (c < contextSize || r < regionSize || h < data.size()) {
+      final String heapKey = h < data.size() ? data.getKeyAt(h) : null;
+      final boolean fromRegion = r < regionSize && (heapKey == null || arenaFields.compareKey(position, heapKey) < 0);
+      if (c < contextSize) {
+        final String contextKey = shared.getKeyAt(c);
+        final int order = fromRegion ? -arenaFields.compareKey(position, contextKey)
+            : heapKey == null ? -1 : contextKey.compareTo(heapKey);
+        if (order == 0 || (order < 0 && indexes != null && !shared.isIncluded(c, projection))) {
+          c++;
+          continue;
+        }
+        if (order < 0) {
+          if (indexes == null) {
+            // splice every context field up to the next key of the message's own
+            int end = c + 1;
+            while (end < contextSize && (fromRegion ? arenaFields.compareKey(position, shared.getKeyAt(end)) > 0
+                : heapKey == null || shared.getKeyAt(end).compareTo(heapKey) < 0)) {
+              end++;
+            }
+            first &= !shared.appendFields(style, c, end, first, sb);
+            c = end;
+          } else {
+            shared.appendField(style, c++, first, sb);
+            first = false;
+          }
+          continue;
+        }
+      }
+      final boolean included = indexes == null || projection.includes(indexes[r + h]);
+      if (fromRegion) {
+        if (included) {
+          arenaFields.appendField(style, position, first, sb);
+          first = false;
+        }
+        position = arenaFields.nextEntry(position);
+        r++;
+      } else {
+        if (included) {
+          appendField(style, first, heapKey, renderValue(data.getValueAt(h), heapKey), sb);
+          first = false;
+        }
+        h++;
+      }
+    }
+    return !first;
+  }
+
+  /**
+   * Appends a single field in the specified style.
+   * @param style The style of the field.
+   * @param first Whether nothing has been appended to the fields yet.
+   * @param key The key.
+   * @param value The rendered value.
+   * @param sb The StringBuilder to append to.
+   */
+  static void appendField(final FieldStyle style, final boolean first, final String key, final String value,
+      final StringBuilder sb) {
+    switch (style) {
+      case STRUCTURED:
+        if (!first) {
+          sb.append(' ');
+        }
+        sb.append(key).append(Chars.EQ).append(Chars.DQUOTE).append(value).append(Chars.DQUOTE);
+        break;
+      case PARAMS:
+        sb.append(' ').append(key).append(Chars.EQ).append(Chars.DQUOTE);
+        Rfc5424Writer.appendParamValue(value, sb);
+        sb.append(Chars.DQUOTE);
+        break;
+      case JSON: {
+        sb.append(", ").append(Chars.DQUOTE);
+        int start = sb.length();
+        sb.append(key);
+        StringBuilders.escapeJson(sb, start);
+        sb.append(Chars.DQUOTE).append(':').append(Chars.DQUOTE);
+        start = sb.length();
+        sb.append(value);
+        StringBuilders.escapeJson(sb, start);
+        sb.append(Chars.DQUOTE);
+        break;
+      }
+      default: {
+        sb.append("  <Entry key=\"").append(key).append("\">");
+        final int start = sb.length();
+        sb.append(value);
+        StringBuilders.escapeXml(sb, start);
+        sb.append("</Entry>\n");
+        break;
+      }
+    }
+  }
+
   protected void asXml(StructuredDataId structuredDataId, String message, StringBuilder sb) {
+    asXml(structuredDataId, message, FieldProjection.ALL, sb);
+  }
+
+  protected void asXml(StructuredDataId structuredDataId, String message, FieldProjection projection,
+      StringBuilder sb) {
     sb.append("<StructuredData>\n");
     sb.append("<type>").append(type).append("</type>\n");
     sb.append("<id>").append(structuredDataId).append("</id>\n");
     sb.append("<message>").append(message).append("</message>\n");
     sb.append("<Map>\n");
 
-    IndexedReadOnlyStringMap data = getIndexedReadOnlyStringMap();
-    for (int i = 0; i < data.size(); i++) {
-      sb.append("  <Entry key=\"")
-          .append(data.getKeyAt(i))
-          .append("\">");
-      int size = sb.length();
-      recursiveDeepToString(data.getValueAt(i), sb, data.getKeyAt(i));
-      StringBuilders.escapeXml(sb, size);
-      sb.append("</Entry>\n");
-    }
+    appendFields(FieldStyle.XML, projection, true, sb);
     sb.append("</Map>");
     sb.append("\n</StructuredData>\n");
   }
 
   protected void asJson(StructuredDataId structuredDataId, String message, StringBuilder sb) {
+    asJson(structuredDataId, message, FieldProjection.ALL, sb);
+  }
+
+  protected void asJson(StructuredDataId structuredDataId, String message, FieldProjection projection,
+      StringBuilder sb) {
+    final MessageTemplate template = message != null && message == this.message ? MessageTemplate.of(message) : null;
+    if (template == null || !template.appendJsonHeader(type, structuredDataId, sb)) {
+      final int header = sb.length();
+      appendJsonHeader(structuredDataId, message, sb);
+      if (template != null) {
+        template.cacheJsonHeader(type, structuredDataId, sb.substring(header));
+      }
+    }
+    appendFields(FieldStyle.JSON, projection, true, sb);
+    sb.append('}');
+  }
+
+  private void appendJsonHeader(StructuredDataId structuredDataId, String message, StringBuilder sb) {
     sb.append('{');
     sb.append(Chars.DQUOTE);
     sb.append("type");
@@ -480,24 +861,83 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
     sb.append(message);
     StringBuilders.escapeJson(sb, start);
     sb.append(Chars.DQUOTE);
-    IndexedReadOnlyStringMap data = getIndexedReadOnlyStringMap();
-    for (int i = 0; i < data.size(); i++) {
-      sb.append(", ");
-      sb.append(Chars.DQUOTE);
-      start = sb.length();
-      sb.append(data.getKeyAt(i));
-      StringBuilders.escapeJson(sb, start);
-      sb.append(Chars.DQUOTE).append(':').append(Chars.DQUOTE);
-      start = sb.length();
-      recursiveDeepToString(data.getValueAt(i), sb, data.getKeyAt(i));
-      StringBuilders.escapeJson(sb, start);
-      sb.append(Chars.DQUOTE);
+  }
+
+  /**
+   * Returns the index of each of the message's own keys in a {@link FieldProjections} scope, in key order with the
+   * keys held in the arena merged in. The indexes are shared by the messages of a template as long as they have the
+   * same keys, so they are normally resolved once per template rather than once per message.
+   * @param scope The scope.
+   * @return the indexes.
+   */
+  int[] keyIndexes(final FieldProjections scope) {
+    FieldProjections.KeyIndexes resolved = keyIndexes;
+    if (resolved != null && resolved.isCurrent(scope)) {
+      return resolved.indexes;
     }
-    sb.append('}');
+    final MessageTemplate template = message != null ? MessageTemplate.cached(message) : null;
+    resolved = template != null ? template.keyIndexes() : null;
+    if (resolved == null || !resolved.isCurrent(scope) || !hasOwnKeys(resolved.keys)) {
+      resolved = scope.resolve(ownKeys());
+      if (template != null) {
+        template.cacheKeyIndexes(resolved);
+      }
+    }
+    keyIndexes = resolved;
+    return resolved.indexes;
+  }
+
+  /**
+   * Returns true if the message's own keys are exactly {@code keys}, which are in key order.
+   */
+  private boolean hasOwnKeys(final String[] keys) {
+    final ArenaRegion arenaFields = region;
+    final IndexedReadOnlyStringMap data = heapData();
+    final int regionSize = arenaFields != null ? arenaFields.size() : 0;
+    if (keys.length != data.size() + regionSize) {
+      return false;
+    }
+    int position = regionSize > 0 ? arenaFields.firstEntry() : 0;
+    int r = 0;
+    int h = 0;
+    for (final String key : keys) {
+      final String heapKey = h < data.size() ? data.getKeyAt(h) : null;
+      if (heapKey != null && (heapKey == key || heapKey.equals(key))) {
+        h++;
+      } else if (r < regionSize && arenaFields.compareKey(position, key) == 0) {
+        position = arenaFields.nextEntry(position);
+        r++;
+      } else {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String[] ownKeys() {
+    final ArenaRegion arenaFields = region;
+    final IndexedReadOnlyStringMap data = heapData();
+    final int regionSize = arenaFields != null ? arenaFields.size() : 0;
+    final String[] keys = new String[data.size() + regionSize];
+    int position = regionSize > 0 ? arenaFields.firstEntry() : 0;
+    int r = 0;
+    int h = 0;
+    while (r + h < keys.length) {
+      if (r < regionSize && (h == data.size() || arenaFields.compareKey(position, data.getKeyAt(h)) < 0)) {
+        keys[r + h] = arenaFields.keyAt(position);
+        position = arenaFields.nextEntry(position);
+        r++;
+      } else {
+        keys[r + h] = data.getKeyAt(h);
+        h++;
+      }
+    }
+    return keys;
   }
 
   /**
-   * Formats the message and return it.
+   * Formats the message and return it, with the default projection of the {@code FULL} format in the
+   * {@link FieldProjections#getDefault() default} scope.
    * @return the formatted message.
    */
   @Override
@@ -510,13 +950,16 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
    * @param formats An array of Strings that provide extra information about how to format the message.
    * FormattedDataMessage accepts only a format of "FULL" which will cause the event type to be
    * prepended and the event message to be appended. Specifying any other value will cause only the
-   * StructuredData to be included. The default is "FULL".
+   * StructuredData to be included. The default is "FULL". A {@code fields=<name>} option selects a projection.
+   * Projections and format defaults are resolved in the {@link FieldProjections#getDefault() default} scope, as
+   * {@code %m} gives the message no way to reach the configuration; use {@code %fdm}
+   * ({@link FormattedDataPatternConverter}) to resolve them in the configuration's scope.
    *
    * @return the formatted message.
    */
   @Override
   public String getFormattedMessage(final String[] formats) {
-    return asString(getFormat(formats), null);
+    return asString(getFormat(formats), null, getProjection(formats));
   }
 
   private Format getFormat(final String[] formats) {
@@ -532,6 +975,19 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
     return null;
   }
 
+  private FieldProjection getProjection(final String[] formats) {
+    if (formats == null) {
+      return null;
+    }
+    for (int i = 0; i < formats.length; i++) {
+      final FieldProjection projection = FieldProjections.getDefault().forOption(formats[i]);
+      if (projection != null) {
+        return projection;
+      }
+    }
+    return null;
+  }
+
   @Override
   public String toString() {
     return asString(null, null);
@@ -554,34 +1010,357 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
 
     final FormattedDataMessage that = (FormattedDataMessage) o;
 
-    if (!super.equals(o)) {
+    if (hash != 0 && that.hash != 0 && hash != that.hash) {
       return false;
     }
     if (type != null ? !type.equals(that.type) : that.type != null) {
       return false;
     }
-    if (id != null ? !id.equals(that.id) : that.id != null) {
+    if (!idEquals(id, that.id)) {
       return false;
     }
     if (message != null ? !message.equals(that.message) : that.message != null) {
       return false;
     }
+    if (context != null ? !context.equals(that.context) : that.context != null) {
+      return false;
+    }
 
-    return true;
+    return ownFieldsEqual(that);
   }
 
+  /**
+   * Returns the hash code of this message. The hash is computed once and cached until the message is changed, so
+   * repeated lookups of the same message, e.g. by {@link CoalescingAppender}, do not re-hash the whole map. Fields
+   * held in a {@link MessageArena} are hashed where they are, without being decoded or released, and hash as they
+   * would on the heap.
+   * @return the hash code.
+   */
   @Override
   public int hashCode() {
-    int result = super.hashCode();
+    if (hash != 0) {
+      return hash;
+    }
+    final ArenaRegion arenaFields = region;
+    final IndexedReadOnlyStringMap data = heapData();
+    // the Map hash of the own fields, which does not depend on the order they are visited in
+    int fields = arenaFields != null ? arenaFields.fieldsHashCode() : 0;
+    for (int i = 0; i < data.size(); i++) {
+      fields += data.getKeyAt(i).hashCode() ^ Objects.hashCode(data.getValueAt(i));
+    }
+    int result = fields;
     result = HASHVAL * result + (type != null ? type.hashCode() : 0);
-    result = HASHVAL * result + (id != null ? id.hashCode() : 0);
+    result = HASHVAL * result + idHashCode(id);
     result = HASHVAL * result + (message != null ? message.hashCode() : 0);
+    result = HASHVAL * result + (context != null ? context.hashCode() : 0);
+    hash = result;
+    return result;
+  }
+
+  /**
+   * Compares the own fields of two messages in key order, each field where it is held, so that neither message
+   * decodes or releases its region.
+   */
+  private boolean ownFieldsEqual(final FormattedDataMessage that) {
+    final ArenaRegion arenaFields = region;
+    final ArenaRegion thatArenaFields = that.region;
+    final IndexedReadOnlyStringMap data = heapData();
+    final IndexedReadOnlyStringMap thatData = that.heapData();
+    final int regionSize = arenaFields != null ? arenaFields.size() : 0;
+    final int thatRegionSize = thatArenaFields != null ? thatArenaFields.size() : 0;
+    final int size = data.size() + regionSize;
+    if (size != thatData.size() + thatRegionSize) {
+      return false;
+    }
+    int position = regionSize > 0 ? arenaFields.firstEntry() : 0;
+    int thatPosition = thatRegionSize > 0 ? thatArenaFields.firstEntry() : 0;
+    int r = 0;
+    int h = 0;
+    int thatR = 0;
+    int thatH = 0;
+    for (int i = 0; i < size; i++) {
+      final boolean fromRegion = r < regionSize
+          && (h == data.size() || arenaFields.compareKey(position, data.getKeyAt(h)) < 0);
+      final boolean thatFromRegion = thatR < thatRegionSize
+          && (thatH == thatData.size() || thatArenaFields.compareKey(thatPosition, thatData.getKeyAt(thatH)) < 0);
+      final boolean equal;
+      if (fromRegion && thatFromRegion) {
+        equal = arenaFields.entryEquals(position, thatArenaFields, thatPosition);
+      } else if (fromRegion) {
+        equal = arenaFields.entryEquals(position, thatData.getKeyAt(thatH), thatData.getValueAt(thatH));
+      } else if (thatFromRegion) {
+        equal = thatArenaFields.entryEquals(thatPosition, data.getKeyAt(h), data.getValueAt(h));
+      } else {
+        equal = data.getKeyAt(h).equals(thatData.getKeyAt(thatH))
+            && Objects.equals(data.getValueAt(h), thatData.getValueAt(thatH));
+      }
+      if (!equal) {
+        return false;
+      }
+      if (fromRegion) {
+        position = arenaFields.nextEntry(position);
+        r++;
+      } else {
+        h++;
+      }
+      if (thatFromRegion) {
+        thatPosition = thatArenaFields.nextEntry(thatPosition);
+        thatR++;
+      } else {
+        thatH++;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * StructuredDataId does not implement equals or hashCode, so ids are compared by name and enterprise number.
+   */
+  private static boolean idEquals(final StructuredDataId a, final StructuredDataId b) {
+    if (a == b) {
+      return true;
+    }
+    if (a == null || b == null) {
+      return false;
+    }
+    return a.getEnterpriseNumber() == b.getEnterpriseNumber()
+        && (a.getName() != null ? a.getName().equals(b.getName()) : b.getName() == null);
+  }
+
+  private static int idHashCode(final StructuredDataId id) {
+    if (id == null) {
+      return 0;
+    }
+    return HASHVAL * (id.getName() != null ? id.getName().hashCode() : 0) + id.getEnterpriseNumber();
+  }
+
+  @Override
+  public void putAll(final Map<String, String> map) {
+    inflate();
+    invalidateAll();
+    super.putAll(map);
+  }
+
+  @Override
+  public String remove(final String key) {
+    invalidate(key);
+    return super.remove(key);
+  }
+
+  @Override
+  public void clear() {
+    inflate();
+    invalidateAll();
+    super.clear();
+  }
+
+  /**
+   * Forgets the cached hash and the cached rendering of a value about to change.
+   * @param key The key of the changing value.
+   */
+  private synchronized void invalidate(final String key) {
+    inflate();
+    hash = 0;
+    keyIndexes = null;
+    layeredData = null;
+    cachedStringMap.remove(key);
+  }
+
+  private synchronized void invalidateAll() {
+    hash = 0;
+    keyIndexes = null;
+    layeredData = null;
+    cachedStringMap.clear();
+  }
+
+  /**
+   * Releases the {@link MessageArena} region holding this message's fields. Call it once the message has been
+   * consumed, e.g. by routing the events of an Async appender through {@link ArenaReleaseAppender}; any later use of
+   * the message's fields throws an {@link IllegalStateException}. Messages that hold no region are unaffected.
+   */
+  public void release() {
+    final ArenaRegion arenaFields = region;
+    if (arenaFields != null) {
+      arenaFields.release();
+    }
+  }
+
+  /**
+   * Copies the message's own fields, those held in the arena included, without releasing its region.
+   * @return a new map of the fields.
+   */
+  Map<String, Object> copyFields() {
+    final ArenaRegion arenaFields = region;
+    final IndexedReadOnlyStringMap data = heapData();
+    final Map<String, Object> copy = new HashMap<>(data.size() + (arenaFields != null ? arenaFields.size() : 0) + 1);
+    for (int i = 0; i < data.size(); i++) {
+      copy.put(data.getKeyAt(i), data.getValueAt(i));
+    }
+    if (arenaFields != null) {
+      arenaFields.decodeInto(copy);
+    }
+    return copy;
+  }
+
+  /**
+   * Returns a message equal to this one that stays readable once this message's region is released: a copy with
+   * every field on the heap if this message holds a region, or this message if it does not.
+   * @return the message.
+   */
+  FormattedDataMessage detach() {
+    return region != null ? newInstance(copyFields()) : this;
+  }
+
+  /**
+   * Returns the fields held on the heap, without those held in the arena.
+   */
+  private IndexedReadOnlyStringMap heapData() {
+    return super.getIndexedReadOnlyStringMap();
+  }
+
+  /**
+   * Moves the fields held in the arena onto the heap and releases the region. Called before the whole map is read
+   * through the {@link MapMessage} API ({@link #getData()}, {@link #getIndexedReadOnlyStringMap()}, {@code forEach},
+   * {@link #getParameters()} and {@link #asXml(StringBuilder)}), before it is changed and before it is serialized.
+   * {@link #get(String)}, {@link #containsKey(String)}, the formats, {@link #hashCode()} and {@link #equals(Object)}
+   * read the region in place. The region is volatile so that every thread sees it cleared, but a read that has
+   * started on another thread when the region is released throws an {@link IllegalStateException}.
+   */
+  @SuppressWarnings("unchecked")
+  private synchronized void inflate() {
+    final ArenaRegion arenaFields = region;
+    if (arenaFields == null) {
+      return;
+    }
+    final Map<String, Object> fields = new HashMap<>();
+    arenaFields.decodeInto(fields);
+    region = null;
+    arenaFields.release();
+    keyIndexes = null;
+    super.putAll((Map<String, String>) (Map<String, ?>) fields);
+  }
+
+  private void writeObject(final ObjectOutputStream out) throws IOException {
+    inflate();
+    out.defaultWriteObject();
+  }
+
+  /**
+   * Returns the message data, including the fields of the context that the message does not replace, sorted by key.
+   * This moves fields held in a {@link MessageArena} onto the heap and releases the region.
+   * @return the message data.
+   */
+  @Override
+  public IndexedReadOnlyStringMap getIndexedReadOnlyStringMap() {
+    inflate();
+    final IndexedReadOnlyStringMap data = super.getIndexedReadOnlyStringMap();
+    if (context == null || context.size() == 0) {
+      return data;
+    }
+    IndexedReadOnlyStringMap result = layeredData;
+    if (result == null) {
+      final SortedArrayStringMap merged = new SortedArrayStringMap(context.size() + data.size());
+      for (int i = 0; i < context.size(); i++) {
+        merged.putValue(context.getKeyAt(i), context.getValueAt(i));
+      }
+      merged.putAll(data);
+      merged.freeze();
+      layeredData = result = merged;
+    }
+    return result;
+  }
+
+  /**
+   * Returns true if the message or its context has a field named {@code key}, reading fields held in a
+   * {@link MessageArena} in place.
+   * @param key The name of the field.
+   * @return true if the field is present.
+   */
+  @Override
+  public boolean containsKey(final String key) {
+    return isReplaced(key, heapData()) || (context != null && context.containsKey(key));
+  }
+
+  /**
+   * Returns a field rendered as a String, reading fields held in a {@link MessageArena} in place.
+   * @param key The name of the field.
+   * @return the field, or null if neither the message nor its context has it.
+   */
+  @Override
+  public String get(final String key) {
+    final ArenaRegion arenaFields = region;
+    if (!super.containsKey(key)) {
+      if (arenaFields != null) {
+        final StringBuilder sb = new StringBuilder();
+        if (arenaFields.appendValue(key, sb)) {
+          return sb.toString();
+        }
+      }
+      if (context != null) {
+        final int index = context.indexOf(key);
+        if (index >= 0) {
+          return context.getRenderedValueAt(index);
+        }
+      }
+    }
+    return super.get(key);
+  }
+
+  /**
+   * Performs the action for each field, context fields included. This moves fields held in a {@link MessageArena}
+   * onto the heap and releases the region.
+   * @param action The action to perform.
+   */
+  @Override
+  public <CV> void forEach(final BiConsumer<String, ? super CV> action) {
+    getIndexedReadOnlyStringMap().forEach(action);
+  }
+
+  @Override
+  public <CV, S> void forEach(final TriConsumer<String, ? super CV, S> action, final S state) {
+    getIndexedReadOnlyStringMap().forEach(action, state);
+  }
+
+  @Override
+  public Object[] getParameters() {
+    final IndexedReadOnlyStringMap data = getIndexedReadOnlyStringMap();
+    final Object[] result = new Object[data.size()];
+    for (int i = 0; i < data.size(); i++) {
+      result[i] = data.getValueAt(i);
+    }
     return result;
   }
 
+  @Override
+  public void asXml(final StringBuilder sb) {
+    final IndexedReadOnlyStringMap data = getIndexedReadOnlyStringMap();
+    sb.append("<Map>\n");
+    for (int i = 0; i < data.size(); i++) {
+      sb.append("  <Entry key=\"").append(data.getKeyAt(i)).append("\">");
+      final int start = sb.length();
+      deepToString(data.getValueAt(i), sb);
+      StringBuilders.escapeXml(sb, start);
+      sb.append("</Entry>\n");
+    }
+    sb.append("</Map>");
+  }
+
+  /**
+   * Adds an item to the data Map, capturing known-mutable values with {@link LazyMap#capture(Object)} so that they
+   * can safely be formatted later on another thread.
+   * @param key The name of the data item.
+   * @param value The value of the data item.
+   * @return this message.
+   */
+  @Override
+  public FormattedDataMessage with(final String key, final Object value) {
+    return super.with(key, LazyMap.capture(value));
+  }
+
   @Override
   protected void validate(final String key, final boolean value) {
     validateKey(key);
+    invalidate(key);
   }
 
   /**
@@ -590,6 +1369,7 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
   @Override
   protected void validate(final String key, final byte value) {
     validateKey(key);
+    invalidate(key);
   }
 
   /**
@@ -598,6 +1378,7 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
   @Override
   protected void validate(final String key, final char value) {
     validateKey(key);
+    invalidate(key);
   }
 
   /**
@@ -606,6 +1387,7 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
   @Override
   protected void validate(final String key, final double value) {
     validateKey(key);
+    invalidate(key);
   }
 
   /**
@@ -614,6 +1396,7 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
   @Override
   protected void validate(final String key, final float value) {
     validateKey(key);
+    invalidate(key);
   }
 
   /**
@@ -622,6 +1405,7 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
   @Override
   protected void validate(final String key, final int value) {
     validateKey(key);
+    invalidate(key);
   }
 
   /**
@@ -630,6 +1414,7 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
   @Override
   protected void validate(final String key, final long value) {
     validateKey(key);
+    invalidate(key);
   }
 
   /**
@@ -638,6 +1423,7 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
   @Override
   protected void validate(final String key, final Object value) {
     validateKey(key);
+    invalidate(key);
   }
 
   /**
@@ -646,14 +1432,20 @@ public class FormattedDataMessage extends MapMessage<FormattedDataMessage, Objec
   @Override
   protected void validate(final String key, final short value) {
     validateKey(key);
+    invalidate(key);
   }
 
   @Override
   protected void validate(final String key, final String value) {
     validateKey(key);
+    invalidate(key);
   }
 
   protected void validateKey(final String key) {
+    validateKey(key, maxLength);
+  }
+
+  static void validateKey(final String key, final int maxLength) {
     if (maxLength > 0 && key.length() > maxLength) {
       throw new IllegalArgumentException("Structured data keys are limited to " + maxLength +
           " characters. key: " + key);
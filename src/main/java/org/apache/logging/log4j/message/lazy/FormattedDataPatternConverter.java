@@ -0,0 +1,72 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.pattern.ConverterKeys;
+import org.apache.logging.log4j.core.pattern.LogEventPatternConverter;
+import org.apache.logging.log4j.core.pattern.PatternConverter;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+
+/**
+ * Formats the event's {@link FormattedDataMessage} like {@code %m}, selecting projections from the
+ * {@link FieldProjections} scope of the configuration rather than the default scope. The options are a
+ * {@link FormattedDataMessage.Format} name, {@code FULL} if none is given, and a {@code fields=<name>} projection,
+ * which is resolved once, when the pattern is parsed. Other messages are formatted as {@code %m} formats them.
+ *
+ * <pre>
+ * &lt;PatternLayout pattern="%d %fdm{JSON}{fields=console}%n"/&gt;
+ * </pre>
+ */
+@Plugin(name = "FormattedDataPatternConverter", category = PatternConverter.CATEGORY)
+@ConverterKeys({"fdm"})
+public final class FormattedDataPatternConverter extends LogEventPatternConverter {
+  private final FormattedDataMessage.Format format;
+  private final FieldProjection projection;
+
+  private FormattedDataPatternConverter(final FormattedDataMessage.Format format, final FieldProjection projection) {
+    super("FormattedData", "message");
+    this.format = format;
+    this.projection = projection;
+  }
+
+  /**
+   * Creates a converter.
+   * @param config The configuration whose projections the options select.
+   * @param options The format and projection options.
+   * @return the converter.
+   */
+  public static FormattedDataPatternConverter newInstance(final Configuration config, final String[] options) {
+    final FieldProjections projections = FieldProjections.of(config);
+    FormattedDataMessage.Format format = null;
+    FieldProjection projection = null;
+    if (options != null) {
+      for (final String option : options) {
+        final FormattedDataMessage.Format named = FormattedDataMessage.Format.lookupIgnoreCase(option);
+        final FieldProjection selected = named == null ? projections.forOption(option) : null;
+        if (named != null) {
+          format = named;
+        } else if (selected != null) {
+          projection = selected;
+        }
+      }
+    }
+    if (format == null) {
+      format = FormattedDataMessage.Format.FULL;
+    }
+    return new FormattedDataPatternConverter(format, projection != null ? projection : projections.forFormat(format));
+  }
+
+  @Override
+  public void format(final LogEvent event, final StringBuilder toAppendTo) {
+    final Message message = event.getMessage();
+    if (message instanceof FormattedDataMessage) {
+      ((FormattedDataMessage) message).asString(format, null, projection, toAppendTo);
+    } else if (message instanceof StringBuilderFormattable) {
+      ((StringBuilderFormattable) message).formatTo(toAppendTo);
+    } else if (message != null) {
+      toAppendTo.append(message.getFormattedMessage());
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.net.Facility;
+import org.apache.logging.log4j.core.net.Priority;
+import org.apache.logging.log4j.core.util.NetUtils;
+import org.apache.logging.log4j.core.util.datetime.FixedDateFormat;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ProcessIdUtil;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+
+/**
+ * Formats events as RFC 5424 syslog lines. The STRUCTURED-DATA of a {@link FormattedDataMessage} is written by an
+ * {@link Rfc5424Writer} straight into the layout's buffer, its type becomes the MSGID and its interpolated message
+ * the MSG; other messages are written with nil MSGID and STRUCTURED-DATA. The HOSTNAME, APP-NAME and PROCID part of
+ * the header is built once, and events are encoded from the layout's buffer without an intermediate String. Header
+ * fields are kept to the printable US-ASCII characters and lengths RFC 5424 allows.
+ *
+ * <pre>
+ * &lt;FormattedDataRfc5424Layout appName="api" facility="LOCAL0" contextId="context@32473"
+ *     elements="origin@32473=ip,port;http@32473=method,status"/&gt;
+ * </pre>
+ */
+@Plugin(name = "FormattedDataRfc5424Layout", category = Node.CATEGORY, elementType = Layout.ELEMENT_TYPE,
+    printObject = true)
+public final class FormattedDataRfc5424Layout extends AbstractStringLayout {
+  private static final String NIL = "-";
+  private static final int MAX_HOSTNAME_LENGTH = 255;
+  private static final int MAX_APP_NAME_LENGTH = 48;
+  private static final int MAX_PROCID_LENGTH = 128;
+  private static final int MAX_MSGID_LENGTH = 32;
+  private static final FixedDateFormat TIMESTAMP =
+      FixedDateFormat.create(FixedDateFormat.FixedFormat.ISO8601_PERIOD, TimeZone.getTimeZone("UTC"));
+  private static final ThreadLocal<char[]> TIMESTAMP_BUFFER = new ThreadLocal<char[]>() {
+    @Override
+    protected char[] initialValue() {
+      return new char[FixedDateFormat.FixedFormat.ISO8601_PERIOD.getLength()];
+    }
+  };
+
+  private final Facility facility;
+  private final String header;
+  private final Rfc5424Writer writer;
+  private final boolean newLine;
+
+  private FormattedDataRfc5424Layout(final Charset charset, final Facility facility, final String hostName,
+      final String appName, final String procId, final Rfc5424Writer writer, final boolean newLine) {
+    super(charset);
+    this.facility = facility;
+    final StringBuilder sb = new StringBuilder();
+    appendHeaderField(hostName, MAX_HOSTNAME_LENGTH, sb);
+    appendHeaderField(appName, MAX_APP_NAME_LENGTH, sb.append(' '));
+    appendHeaderField(procId, MAX_PROCID_LENGTH, sb.append(' '));
+    this.header = sb.append(' ').toString();
+    this.writer = writer;
+    this.newLine = newLine;
+  }
+
+  @Override
+  public String toSerializable(final LogEvent event) {
+    final StringBuilder sb = getStringBuilder();
+    format(event, sb);
+    return sb.toString();
+  }
+
+  @Override
+  public void encode(final LogEvent event, final ByteBufferDestination destination) {
+    final StringBuilder sb = getStringBuilder();
+    format(event, sb);
+    getStringBuilderEncoder().encode(sb, destination);
+    trimToMaxSize(sb);
+  }
+
+  private void format(final LogEvent event, final StringBuilder sb) {
+    sb.append('<').append(Priority.getPriority(facility, event.getLevel())).append(">1 ");
+    final char[] timestamp = TIMESTAMP_BUFFER.get();
+    final int length = TIMESTAMP.format(event.getTimeMillis(), timestamp, 0);
+    sb.append(timestamp, 0, length).append("Z ");
+    sb.append(header);
+    final Message message = event.getMessage();
+    if (message instanceof FormattedDataMessage) {
+      final FormattedDataMessage data = (FormattedDataMessage) message;
+      appendHeaderField(data.getType(), MAX_MSGID_LENGTH, sb);
+      sb.append(' ');
+      writer.writeStructuredData(data, sb);
+      final String msg = data.getFormat();
+      if (msg != null && !msg.isEmpty()) {
+        sb.append(' ').append(msg);
+      }
+    } else {
+      sb.append(NIL).append(' ').append(NIL);
+      final String msg = message.getFormattedMessage();
+      if (msg != null && !msg.isEmpty()) {
+        sb.append(' ').append(msg);
+      }
+    }
+    if (newLine) {
+      sb.append('\n');
+    }
+  }
+
+  /**
+   * Appends a header field, such as the message type as the MSGID, which RFC 5424 limits to printable US-ASCII
+   * characters: longer values are truncated to {@code maxLength}, other characters are replaced with {@code _} and
+   * an empty value is written as nil.
+   */
+  private static void appendHeaderField(final String value, final int maxLength, final StringBuilder sb) {
+    if (value == null || value.isEmpty()) {
+      sb.append(NIL);
+      return;
+    }
+    final int length = Math.min(value.length(), maxLength);
+    for (int i = 0; i < length; i++) {
+      final char c = value.charAt(i);
+      sb.append(c >= '!' && c <= '~' ? c : '_');
+    }
+  }
+
+  @PluginBuilderFactory
+  public static <B extends Builder<B>> B newBuilder() {
+    return new Builder<B>().asBuilder();
+  }
+
+  public static class Builder<B extends Builder<B>> extends AbstractStringLayout.Builder<B>
+      implements org.apache.logging.log4j.core.util.Builder<FormattedDataRfc5424Layout> {
+
+    @PluginBuilderAttribute
+    private Facility facility = Facility.LOCAL0;
+
+    @PluginBuilderAttribute
+    private String hostName = NetUtils.getLocalHostname();
+
+    @PluginBuilderAttribute
+    private String appName;
+
+    @PluginBuilderAttribute
+    private String procId = ProcessIdUtil.getProcessId();
+
+    @PluginBuilderAttribute
+    private String contextId;
+
+    @PluginBuilderAttribute
+    private String elements;
+
+    @PluginBuilderAttribute
+    private boolean newLine;
+
+    public B setFacility(final Facility facility) {
+      this.facility = facility;
+      return asBuilder();
+    }
+
+    public B setHostName(final String hostName) {
+      this.hostName = hostName;
+      return asBuilder();
+    }
+
+    public B setAppName(final String appName) {
+      this.appName = appName;
+      return asBuilder();
+    }
+
+    public B setProcId(final String procId) {
+      this.procId = procId;
+      return asBuilder();
+    }
+
+    public B setContextId(final String contextId) {
+      this.contextId = contextId;
+      return asBuilder();
+    }
+
+    /**
+     * Moves fields into SD-ELEMENTs of their own, written as {@code id=key,key;id2=key}.
+     * @param elements The SD-ELEMENTs.
+     * @return this builder.
+     */
+    public B setElements(final String elements) {
+      this.elements = elements;
+      return asBuilder();
+    }
+
+    public B setNewLine(final boolean newLine) {
+      this.newLine = newLine;
+      return asBuilder();
+    }
+
+    @Override
+    public FormattedDataRfc5424Layout build() {
+      final Rfc5424Writer.Builder writer = Rfc5424Writer.newBuilder()
+          .setProjections(FieldProjections.of(getConfiguration()))
+          .setContextId(contextId);
+      if (elements != null && !elements.trim().isEmpty()) {
+        for (final String element : elements.trim().split("\\s*;\\s*")) {
+          final int equals = element.indexOf('=');
+          if (equals < 0) {
+            throw new IllegalArgumentException("SD-ELEMENTs must be written as id=key,key: " + element);
+          }
+          writer.addElement(element.substring(0, equals).trim(),
+              element.substring(equals + 1).trim().split("\\s*,\\s*"));
+        }
+      }
+      final Charset charset = getCharset() != null ? getCharset() : StandardCharsets.UTF_8;
+      return new FormattedDataRfc5424Layout(charset, facility, hostName, appName, procId, writer.build(), newLine);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.LoaderUtil;
+import org.apache.logging.log4j.util.PropertiesUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Warms the caches and code paths of {@link FormattedDataMessage} for known templates, so that a short-lived process
+ * does not pay for them on its first messages. Each template is parsed and cached, and a sample message resolves the
+ * template's key indexes and is interpolated. When a line gives the template's type and id, the sample is also
+ * rendered in every format, which caches the JSON header for that type and id; a bare template has no type and id to
+ * key the header on, so it is not rendered.
+ *
+ * <p>Templates are given one per line, either as the bare template or as {@code type<TAB>id<TAB>template}. The
+ * {@code log4j.formattedDataMessage.templates} property names a file or classpath resource of such lines; blank
+ * lines and lines starting with {@code #} are ignored.</p>
+ *
+ * <pre>
+ * public static void main(String[] args) {
+ *   FormattedDataWarmup.startInBackground();
+ *   ...
+ * }
+ * </pre>
+ */
+public final class FormattedDataWarmup {
+  private static final String TEMPLATES_PROPERTY = "log4j.formattedDataMessage.templates";
+  private static final String SAMPLE_VALUE = "warmup";
+  private static final Logger LOGGER = StatusLogger.getLogger();
+
+  private FormattedDataWarmup() {
+  }
+
+  /**
+   * Warms the templates named by {@code log4j.formattedDataMessage.templates} on a daemon thread.
+   * @return the thread, or null if no templates are configured.
+   */
+  public static Thread startInBackground() {
+    final String location = PropertiesUtil.getProperties().getStringProperty(TEMPLATES_PROPERTY);
+    if (location == null || location.trim().isEmpty()) {
+      return null;
+    }
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        warm(readTemplates(location.trim()));
+      }
+    }, "formatted-data-warmup");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Warms the templates named by {@code log4j.formattedDataMessage.templates} on the calling thread.
+   * @return the number of templates warmed.
+   */
+  public static int warmConfigured() {
+    return warm(configuredTemplates());
+  }
+
+  /**
+   * Returns the template lines named by {@code log4j.formattedDataMessage.templates}.
+   * @return the lines, empty if none are configured or they cannot be read.
+   */
+  public static List<String> configuredTemplates() {
+    final String location = PropertiesUtil.getProperties().getStringProperty(TEMPLATES_PROPERTY);
+    if (location == null || location.trim().isEmpty()) {
+      return Collections.emptyList();
+    }
+    return readTemplates(location.trim());
+  }
+
+  /**
+   * Warms a list of templates.
+   * @param lines Template lines, each a template or {@code type<TAB>id<TAB>template}.
+   * @return the number of templates warmed.
+   */
+  public static int warm(final Collection<String> lines) {
+    int warmed = 0;
+    for (final String line : lines) {
+      if (line == null || line.trim().isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      try {
+        warmLine(line);
+        warmed++;
+      } catch (RuntimeException e) {
+        LOGGER.warn("Could not warm FormattedDataMessage template {}", line, e);
+      }
+    }
+    return warmed;
+  }
+
+  private static void warmLine(final String line) {
+    final String[] parts = line.split("\t", 3);
+    final boolean typed = parts.length == 3;
+    final String type = typed ? parts[0] : SAMPLE_VALUE;
+    final String id = typed ? parts[1] : SAMPLE_VALUE;
+    final String template = typed ? parts[2] : line;
+
+    final MessageTemplate parsed = MessageTemplate.of(template);
+    final Map<String, Object> data = new HashMap<>();
+    for (int i = 0; i < parsed.size(); i++) {
+      data.put(parsed.keyAt(i), SAMPLE_VALUE);
+    }
+    final FormattedDataMessage message = new FormattedDataMessage(id, template, type, data);
+    try {
+      message.keyIndexes(FieldProjections.getDefault());
+      message.getFormat();
+      if (typed) {
+        for (final FormattedDataMessage.Format format : FormattedDataMessage.Format.values()) {
+          message.asString(format.name());
+        }
+        message.getFormattedMessage();
+      }
+    } finally {
+      message.release();
+    }
+  }
+
+  static List<String> readTemplates(final String location) {
+    try (InputStream in = open(location)) {
+      if (in == null) {
+        LOGGER.error("FormattedDataMessage templates {} not found", location);
+        return Collections.emptyList();
+      }
+      final List<String> lines = new ArrayList<>();
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+      return lines;
+    } catch (IOException e) {
+      LOGGER.error("Could not read FormattedDataMessage templates {}", location, e);
+      return Collections.emptyList();
+    }
+  }
+
+  private static InputStream open(final String location) throws IOException {
+    final File file = new File(location);
+    if (file.isFile()) {
+      return new FileInputStream(file);
+    }
+    return LoaderUtil.getThreadContextClassLoader().getResourceAsStream(location);
+  }
+}
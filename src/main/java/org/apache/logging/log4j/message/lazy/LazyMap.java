@@ -1,9 +1,30 @@
 package org.apache.logging.log4j.message.lazy;
 
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
 public final class LazyMap {
+  private static final Set<Class<?>> IMMUTABLE_TYPES = immutableTypes();
+
   static final class LazyString<V> {
     private Supplier<V> supplier;
     private V value;
@@ -19,6 +40,17 @@ public final class LazyMap {
       }
       return value;
     }
+
+    /**
+     * Lazy values are equal when they share a supplier, so comparing messages never evaluates them.
+     */
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof LazyString && ((LazyString<?>) o).supplier == supplier;
+    }
+
+    @Override
+    public int hashCode() { return System.identityHashCode(supplier); }
   }
 
   public static <V> Map.Entry<String,Object> lazy(String k, Supplier<V> v) {
@@ -29,4 +61,135 @@ public final class LazyMap {
   public static <V> Map.Entry<String,Object> entry(String k, V v) {
     return Map.entry(k, String.valueOf(v));
   }
+
+  /**
+   * Captures the current state of a value that may be formatted later on another thread. Known-mutable values
+   * (collections, maps, arrays, {@code CharSequence}s other than {@code String} and dates) are shallowly copied;
+   * everything else, including lazy values, is returned as is. The JDK's immutable collections and maps
+   * ({@code List.of}, {@code Map.of}, {@code Collections.empty*}, {@code singleton*} and {@code unmodifiable*}) are
+   * not copied; an unmodifiable view is captured as the view, so its backing collection must not change until the
+   * message has been formatted.
+   *
+   * <p>{@code AtomicInteger}, {@code AtomicLong} and {@code AtomicBoolean} are replaced by their current value, so
+   * the message's data holds an {@code Integer}, {@code Long} or {@code Boolean} where the caller passed the atomic,
+   * and {@code get()} or {@code getData()} return that value rather than the atomic.</p>
+   * @param v The value.
+   * @return v, a shallow copy of v, or the value of an atomic.
+   */
+  @SuppressWarnings("unchecked")
+  public static Object capture(Object v) {
+    if (v == null || v instanceof String || v instanceof LazyString || IMMUTABLE_TYPES.contains(v.getClass())) {
+      return v;
+    }
+    if (v instanceof CharSequence) {
+      return v.toString();
+    }
+    if (v instanceof Collection) {
+      if (v instanceof List) {
+        return new ArrayList<>((List<Object>) v);
+      }
+      if (v instanceof SortedSet) {
+        return new TreeSet<>((SortedSet<Object>) v);
+      }
+      if (v instanceof Set) {
+        return new LinkedHashSet<>((Set<Object>) v);
+      }
+      return new ArrayList<>((Collection<Object>) v);
+    }
+    if (v instanceof Map) {
+      if (v instanceof SortedMap) {
+        return new TreeMap<>((SortedMap<Object, Object>) v);
+      }
+      return new LinkedHashMap<>((Map<Object, Object>) v);
+    }
+    if (v.getClass().isArray()) {
+      return captureArray(v);
+    }
+    if (v instanceof Date) {
+      return ((Date) v).clone();
+    }
+    if (v instanceof Calendar) {
+      return ((Calendar) v).clone();
+    }
+    if (v instanceof AtomicInteger) {
+      return ((AtomicInteger) v).get();
+    }
+    if (v instanceof AtomicLong) {
+      return ((AtomicLong) v).get();
+    }
+    if (v instanceof AtomicBoolean) {
+      return ((AtomicBoolean) v).get();
+    }
+    return v;
+  }
+
+  /**
+   * Applies {@link #capture(Object)} to every value of a map.
+   * @param data The map.
+   * @return data itself if it holds no known-mutable values, otherwise a copy holding captured values.
+   */
+  public static Map<String, Object> captureAll(Map<String, Object> data) {
+    Map<String, Object> captured = null;
+    for (Map.Entry<String, Object> e : data.entrySet()) {
+      Object v = e.getValue();
+      Object c = capture(v);
+      if (c != v && captured == null) {
+        captured = new HashMap<>(data);
+      }
+      if (captured != null) {
+        captured.put(e.getKey(), c);
+      }
+    }
+    return captured == null ? data : captured;
+  }
+
+  /**
+   * Returns the classes of the JDK's immutable collections and maps, and of its unmodifiable views.
+   */
+  private static Set<Class<?>> immutableTypes() {
+    final Set<Class<?>> types = new HashSet<>();
+    final Object[] samples = {
+        List.of(), List.of(1), List.of(1, 2, 3), List.of(1, 2, 3).subList(0, 2),
+        Set.of(), Set.of(1), Set.of(1, 2, 3), Map.of(), Map.of(1, 1), Map.of(1, 1, 2, 2),
+        Collections.emptyList(), Collections.emptySet(), Collections.emptySortedSet(),
+        Collections.emptyNavigableSet(), Collections.emptyMap(), Collections.emptySortedMap(),
+        Collections.emptyNavigableMap(), Collections.singletonList(1), Collections.singleton(1),
+        Collections.singletonMap(1, 1), Collections.unmodifiableCollection(new ArrayList<>()),
+        Collections.unmodifiableList(new ArrayList<>()), Collections.unmodifiableList(new LinkedList<>()),
+        Collections.unmodifiableSet(new HashSet<>()), Collections.unmodifiableSortedSet(new TreeSet<>()),
+        Collections.unmodifiableNavigableSet(new TreeSet<>()), Collections.unmodifiableMap(new HashMap<>()),
+        Collections.unmodifiableSortedMap(new TreeMap<>()), Collections.unmodifiableNavigableMap(new TreeMap<>())};
+    for (final Object sample : samples) {
+      types.add(sample.getClass());
+    }
+    return types;
+  }
+
+  private static Object captureArray(Object v) {
+    if (v instanceof Object[]) {
+      return ((Object[]) v).clone();
+    }
+    if (v instanceof int[]) {
+      return ((int[]) v).clone();
+    }
+    if (v instanceof long[]) {
+      return ((long[]) v).clone();
+    }
+    if (v instanceof byte[]) {
+      return ((byte[]) v).clone();
+    }
+    if (v instanceof char[]) {
+      return ((char[]) v).clone();
+    }
+    if (v instanceof double[]) {
+      return ((double[]) v).clone();
+    }
+    if (v instanceof float[]) {
+      return ((float[]) v).clone();
+    }
+    if (v instanceof short[]) {
+      return ((short[]) v).clone();
+    }
+    return ((boolean[]) v).clone();
+  }
 }
@@ -0,0 +1,419 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.util.PropertiesUtil;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A thread-owned off-heap arena that holds the fields of {@link FormattedDataMessage}s created on its thread, so
+ * that messages waiting in an async queue do not keep their values on the heap. Opt in per thread with
+ * {@link #attach(int)}, or for every thread by setting {@code log4j.formattedDataMessage.arenaBytes}.
+ *
+ * <p>The arena is a ring of regions in a direct buffer. Each region starts with a state word that holds the region's
+ * stamp while it is live, so it can be released from any thread and a stale release is ignored. The owning thread
+ * reclaims released regions from the oldest on when it next allocates; a region that is never released holds back
+ * those after it until its message is garbage collected. When the arena is full messages keep their fields on the
+ * heap.</p>
+ *
+ * <p>Regions hold the entries in key order, each as a length-prefixed US-ASCII key, a tag byte and the value:</p>
+ * <pre>
+ * region: int state, int length, int count, entry*
+ * entry:  short keyLength, byte[keyLength] key, byte tag, value
+ * </pre>
+ */
+public final class MessageArena {
+  private static final String CAPACITY_PROPERTY = "log4j.formattedDataMessage.arenaBytes";
+  private static final int DEFAULT_CAPACITY =
+      PropertiesUtil.getProperties().getIntegerProperty(CAPACITY_PROPERTY, 0);
+  private static final int MIN_CAPACITY = 64;
+
+  static final int STATE = 0;
+  static final int LENGTH = 4;
+  static final int COUNT = 8;
+  static final int ENTRIES = 12;
+  private static final int RELEASED = 0;
+
+  static final byte NULL = 0;
+  static final byte FALSE = 1;
+  static final byte TRUE = 2;
+  static final byte INT = 3;
+  static final byte LONG = 4;
+  static final byte FLOAT = 5;
+  static final byte DOUBLE = 6;
+  static final byte LATIN1 = 7;
+  static final byte UTF16 = 8;
+
+  private static final ThreadLocal<MessageArena> ARENAS = new ThreadLocal<MessageArena>() {
+    @Override
+    protected MessageArena initialValue() {
+      return DEFAULT_CAPACITY > 0 ? new MessageArena(DEFAULT_CAPACITY) : null;
+    }
+  };
+
+  final ByteBuffer buffer;
+  private final int capacity;
+  private int head;
+  private int tail;
+  private int used;
+  private int nextStamp = 1;
+  private String[] scratchKeys = new String[16];
+  private Object[] scratchValues = new Object[16];
+  private final Remainder remainder = new Remainder();
+
+  private static final class CleanerHolder {
+    static final Cleaner CLEANER = Cleaner.create();
+  }
+
+  private static final class StateHolder {
+    static final VarHandle STATE_HANDLE =
+        MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+  }
+
+  private MessageArena(final int capacity) {
+    this.capacity = Math.max(MIN_CAPACITY, capacity & ~7);
+    this.buffer = ByteBuffer.allocateDirect(this.capacity).order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Gives the calling thread an arena of the specified size, replacing any arena it has. Regions of the previous
+   * arena stay valid until released.
+   * @param capacityBytes The size of the arena.
+   */
+  public static void attach(final int capacityBytes) {
+    ARENAS.set(new MessageArena(capacityBytes));
+  }
+
+  /**
+   * Stops the calling thread from encoding messages into an arena.
+   */
+  public static void detach() {
+    ARENAS.set(null);
+  }
+
+  /**
+   * Returns the number of bytes of the calling thread's arena held by unreclaimed regions.
+   * @return the bytes in use, or 0 if the thread has no arena.
+   */
+  static int usedBytes() {
+    final MessageArena arena = ARENAS.get();
+    if (arena == null) {
+      return 0;
+    }
+    arena.reclaim();
+    return arena.used;
+  }
+
+  /**
+   * Encodes the values of {@code data} that the arena can hold into the calling thread's arena. Lazy and other
+   * values, and keys that {@code context} also holds, stay on the heap in the region's remainder.
+   * @param data The message data, already {@link LazyMap#capture(Object) captured}.
+   * @param context The context of the message, or null.
+   * @return the region, or null if the thread has no arena, nothing can be encoded or the arena is full.
+   */
+  static ArenaRegion encode(final Map<String, Object> data, final FormattedDataContext context) {
+    if (data.isEmpty()) {
+      return null;
+    }
+    final MessageArena arena = ARENAS.get();
+    return arena != null ? arena.encodeFields(data, context) : null;
+  }
+
+  /**
+   * Sorts the entries into the scratch arrays, encodable ones from the front and the rest from the back, so that
+   * each value is read from {@code data} once and sized and written from the same reference.
+   */
+  private ArenaRegion encodeFields(final Map<String, Object> data, final FormattedDataContext context) {
+    final int size = data.size();
+    if (scratchKeys.length < size) {
+      scratchKeys = new String[Integer.highestOneBit(size) << 1];
+      scratchValues = new Object[scratchKeys.length];
+    }
+    final String[] keys = scratchKeys;
+    final Object[] values = scratchValues;
+    int count = 0;
+    int rest = size;
+    int length = ENTRIES;
+    for (final Map.Entry<String, Object> entry : data.entrySet()) {
+      final String key = entry.getKey();
+      final Object value = entry.getValue();
+      final int entrySize = encodedSize(key, value);
+      if (entrySize > 0 && (context == null || !context.containsKey(key))) {
+        keys[count] = key;
+        values[count++] = value;
+        length += entrySize;
+      } else {
+        keys[--rest] = key;
+        values[rest] = value;
+      }
+    }
+    final int offset = count > 0 ? allocate((length + 7) & ~7) : -1;
+    if (offset < 0) {
+      clearScratch(0, size);
+      return null;
+    }
+    sort(keys, values, count);
+    buffer.putInt(offset + COUNT, count);
+    int position = offset + ENTRIES;
+    for (int i = 0; i < count; i++) {
+      position = putEntry(buffer, position, keys[i], values[i]);
+    }
+    clearScratch(0, count);
+    final int stamp = stamp(offset);
+    return new ArenaRegion(this, offset, stamp, rest == size ? Collections.emptyMap() : remainder.reset(rest, size));
+  }
+
+  /**
+   * Drops the scratch references to the last message's heap values, once the message has copied them.
+   */
+  void clearRemainder() {
+    clearScratch(remainder.start, remainder.end);
+    remainder.reset(0, 0);
+  }
+
+  private void clearScratch(final int from, final int to) {
+    Arrays.fill(scratchKeys, from, to, null);
+    Arrays.fill(scratchValues, from, to, null);
+  }
+
+  /**
+   * Sorts the first {@code count} keys, and their values with them. Messages have few fields, so an insertion sort
+   * does.
+   */
+  private static void sort(final String[] keys, final Object[] values, final int count) {
+    for (int i = 1; i < count; i++) {
+      final String key = keys[i];
+      final Object value = values[i];
+      int j = i - 1;
+      while (j >= 0 && keys[j].compareTo(key) > 0) {
+        keys[j + 1] = keys[j];
+        values[j + 1] = values[j];
+        j--;
+      }
+      keys[j + 1] = key;
+      values[j + 1] = value;
+    }
+  }
+
+  /**
+   * The entries of the scratch arrays that stay on the heap, as a map. The map is its own entry set's only iterator
+   * and entry, so handing the remainder to a message allocates nothing; it is only valid until the next message is
+   * encoded on the thread.
+   */
+  private final class Remainder extends AbstractMap<String, Object>
+      implements Iterator<Map.Entry<String, Object>>, Map.Entry<String, Object> {
+    private final Set<Map.Entry<String, Object>> entries = new AbstractSet<Map.Entry<String, Object>>() {
+      @Override
+      public Iterator<Map.Entry<String, Object>> iterator() {
+        cursor = start - 1;
+        return Remainder.this;
+      }
+
+      @Override
+      public int size() {
+        return end - start;
+      }
+    };
+    private int start;
+    private int end;
+    private int cursor;
+
+    Remainder reset(final int start, final int end) {
+      this.start = start;
+      this.end = end;
+      return this;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+      return entries;
+    }
+
+    @Override
+    public int size() {
+      return end - start;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return cursor + 1 < end;
+    }
+
+    @Override
+    public Map.Entry<String, Object> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      cursor++;
+      return this;
+    }
+
+    @Override
+    public String getKey() {
+      return scratchKeys[cursor];
+    }
+
+    @Override
+    public Object getValue() {
+      return scratchValues[cursor];
+    }
+
+    @Override
+    public Object setValue(final Object value) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  static Cleaner.Cleanable register(final Object owner, final Runnable release) {
+    return CleanerHolder.CLEANER.register(owner, release);
+  }
+
+  boolean isLive(final int offset, final int stamp) {
+    return (int) StateHolder.STATE_HANDLE.getVolatile(buffer, offset + STATE) == stamp;
+  }
+
+  void release(final int offset, final int stamp) {
+    StateHolder.STATE_HANDLE.compareAndSet(buffer, offset + STATE, stamp, RELEASED);
+  }
+
+  /**
+   * Reserves {@code length} bytes, a multiple of 8, at the head of the ring, padding to the end of the buffer when the
+   * region does not fit there. Called on the owning thread only.
+   */
+  private int allocate(final int length) {
+    reclaim();
+    if (used == 0) {
+      head = 0;
+      tail = 0;
+    }
+    if (head >= tail && used < capacity) {
+      if (capacity - head >= length) {
+        return claim(length);
+      }
+      if (tail < length) {
+        return -1;
+      }
+      buffer.putInt(head + LENGTH, capacity - head);
+      StateHolder.STATE_HANDLE.setVolatile(buffer, head + STATE, RELEASED);
+      used += capacity - head;
+      head = 0;
+    }
+    if (tail - head >= length) {
+      return claim(length);
+    }
+    return -1;
+  }
+
+  private int claim(final int length) {
+    final int offset = head;
+    buffer.putInt(offset + LENGTH, length);
+    head = offset + length == capacity ? 0 : offset + length;
+    used += length;
+    return offset;
+  }
+
+  private int stamp(final int offset) {
+    final int stamp = nextStamp;
+    nextStamp = stamp == Integer.MAX_VALUE ? 1 : stamp + 1;
+    StateHolder.STATE_HANDLE.setVolatile(buffer, offset + STATE, stamp);
+    return stamp;
+  }
+
+  private void reclaim() {
+    while (used > 0 && (int) StateHolder.STATE_HANDLE.getVolatile(buffer, tail + STATE) == RELEASED) {
+      final int length = buffer.getInt(tail + LENGTH);
+      tail = tail + length == capacity ? 0 : tail + length;
+      used -= length;
+    }
+  }
+
+  private static int encodedSize(final String key, final Object value) {
+    if (key.length() > Short.MAX_VALUE) {
+      return -1;
+    }
+    for (int i = 0; i < key.length(); i++) {
+      if (key.charAt(i) > 127) {
+        return -1;
+      }
+    }
+    final int entry = 2 + key.length() + 1;
+    if (value == null || value instanceof Boolean) {
+      return entry;
+    }
+    if (value instanceof Integer || value instanceof Float) {
+      return entry + 4;
+    }
+    if (value instanceof Long || value instanceof Double) {
+      return entry + 8;
+    }
+    if (value instanceof String) {
+      final String s = (String) value;
+      return entry + 4 + (isLatin1(s) ? s.length() : 2 * s.length());
+    }
+    return -1;
+  }
+
+  private static int putEntry(final ByteBuffer buffer, int position, final String key, final Object value) {
+    buffer.putShort(position, (short) key.length());
+    position += 2;
+    for (int i = 0; i < key.length(); i++) {
+      buffer.put(position++, (byte) key.charAt(i));
+    }
+    if (value == null) {
+      buffer.put(position++, NULL);
+    } else if (value instanceof Boolean) {
+      buffer.put(position++, (Boolean) value ? TRUE : FALSE);
+    } else if (value instanceof Integer) {
+      buffer.put(position++, INT);
+      buffer.putInt(position, (Integer) value);
+      position += 4;
+    } else if (value instanceof Long) {
+      buffer.put(position++, LONG);
+      buffer.putLong(position, (Long) value);
+      position += 8;
+    } else if (value instanceof Float) {
+      buffer.put(position++, FLOAT);
+      buffer.putFloat(position, (Float) value);
+      position += 4;
+    } else if (value instanceof Double) {
+      buffer.put(position++, DOUBLE);
+      buffer.putDouble(position, (Double) value);
+      position += 8;
+    } else {
+      final String s = (String) value;
+      final boolean latin1 = isLatin1(s);
+      buffer.put(position++, latin1 ? LATIN1 : UTF16);
+      buffer.putInt(position, s.length());
+      position += 4;
+      for (int i = 0; i < s.length(); i++) {
+        if (latin1) {
+          buffer.put(position++, (byte) s.charAt(i));
+        } else {
+          buffer.putChar(position, s.charAt(i));
+          position += 2;
+        }
+      }
+    }
+    return position;
+  }
+
+  private static boolean isLatin1(final String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) > 255) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,183 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.message.StructuredDataId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A parsed {@link FormattedDataMessage} template: the literal text between its {@code %(key)} references, with
+ * {@code \}-escapes resolved, and the referenced keys. Templates are parsed once and cached, up to a limit, so that
+ * interpolating a message is a walk over the parts with no scanning. A template also caches the JSON header of the
+ * last type and id it was rendered with, and the {@link FieldProjection} key indexes of the last key set its messages
+ * were projected with.
+ */
+final class MessageTemplate {
+  private static final int CACHE_LIMIT = 1024;
+  private static final ConcurrentHashMap<String, MessageTemplate> CACHE = new ConcurrentHashMap<>();
+
+  private final String[] literals;
+  private final String[] keys;
+  private final String[] references;
+  private volatile JsonHeader jsonHeader;
+  private volatile FieldProjections.KeyIndexes keyIndexes;
+
+  private static final class JsonHeader {
+    private final String type;
+    private final String idName;
+    private final int enterpriseNumber;
+    private final String text;
+
+    JsonHeader(final String type, final StructuredDataId id, final String text) {
+      this.type = type;
+      this.idName = id.getName();
+      this.enterpriseNumber = id.getEnterpriseNumber();
+      this.text = text;
+    }
+
+    boolean matches(final String type, final StructuredDataId id) {
+      return (this.type != null ? this.type.equals(type) : type == null)
+          && idName.equals(id.getName()) && enterpriseNumber == id.getEnterpriseNumber();
+    }
+  }
+
+  private MessageTemplate(final String[] literals, final String[] keys, final String[] references) {
+    this.literals = literals;
+    this.keys = keys;
+    this.references = references;
+  }
+
+  /**
+   * Returns the parsed form of a template, parsing and caching it on first use.
+   * @param template The template.
+   * @return the parsed template.
+   */
+  static MessageTemplate of(final String template) {
+    MessageTemplate parsed = CACHE.get(template);
+    if (parsed == null) {
+      parsed = parse(template);
+      if (CACHE.size() < CACHE_LIMIT) {
+        final MessageTemplate existing = CACHE.putIfAbsent(template, parsed);
+        if (existing != null) {
+          parsed = existing;
+        }
+      }
+    }
+    return parsed;
+  }
+
+  /**
+   * Returns the parsed form of a template if it has been cached.
+   * @param template The template.
+   * @return the parsed template, or null.
+   */
+  static MessageTemplate cached(final String template) {
+    return CACHE.get(template);
+  }
+
+  /**
+   * Parses a template. A backslash makes the following character literal, unless it is a line terminator; a
+   * {@code %(} followed by one or more characters and a {@code )} references the key between the parentheses.
+   */
+  private static MessageTemplate parse(final String template) {
+    final List<String> literals = new ArrayList<>();
+    final List<String> keys = new ArrayList<>();
+    final List<String> references = new ArrayList<>();
+    final StringBuilder literal = new StringBuilder();
+    final int length = template.length();
+    int i = 0;
+    while (i < length) {
+      final char c = template.charAt(i);
+      if (c == '\\' && i + 1 < length && !isLineTerminator(template.charAt(i + 1))) {
+        literal.append(template.charAt(i + 1));
+        i += 2;
+        continue;
+      }
+      if (c == '%' && i + 1 < length && template.charAt(i + 1) == '(') {
+        final int close = template.indexOf(')', i + 2);
+        if (close > i + 2) {
+          literals.add(literal.toString());
+          literal.setLength(0);
+          keys.add(template.substring(i + 2, close));
+          references.add(template.substring(i, close + 1));
+          i = close + 1;
+          continue;
+        }
+      }
+      literal.append(c);
+      i++;
+    }
+    literals.add(literal.toString());
+    return new MessageTemplate(literals.toArray(new String[0]), keys.toArray(new String[0]),
+        references.toArray(new String[0]));
+  }
+
+  private static boolean isLineTerminator(final char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
+  /**
+   * Returns the number of key references.
+   * @return the number of references.
+   */
+  int size() {
+    return keys.length;
+  }
+
+  /**
+   * Returns the literal text before a reference, or after the last one.
+   * @param index The index of the reference, or {@link #size()} for the trailing text.
+   * @return the literal text.
+   */
+  String literalAt(final int index) {
+    return literals[index];
+  }
+
+  String keyAt(final int index) {
+    return keys[index];
+  }
+
+  /**
+   * Returns a reference as written in the template, which is what a message renders for a key it does not have.
+   * @param index The index of the reference.
+   * @return the reference.
+   */
+  String referenceAt(final int index) {
+    return references[index];
+  }
+
+  /**
+   * Appends the cached JSON header for a type and id.
+   * @param type The message type.
+   * @param id The message id.
+   * @param sb The StringBuilder to append to.
+   * @return true if a header for this type and id was cached.
+   */
+  boolean appendJsonHeader(final String type, final StructuredDataId id, final StringBuilder sb) {
+    final JsonHeader header = jsonHeader;
+    if (header == null || !header.matches(type, id)) {
+      return false;
+    }
+    sb.append(header.text);
+    return true;
+  }
+
+  void cacheJsonHeader(final String type, final StructuredDataId id, final String text) {
+    if (id.getName() != null) {
+      jsonHeader = new JsonHeader(type, id, text);
+    }
+  }
+
+  /**
+   * Returns the key indexes last cached for messages of this template.
+   * @return the key indexes, or null.
+   */
+  FieldProjections.KeyIndexes keyIndexes() {
+    return keyIndexes;
+  }
+
+  void cacheKeyIndexes(final FieldProjections.KeyIndexes keyIndexes) {
+    this.keyIndexes = keyIndexes;
+  }
+}
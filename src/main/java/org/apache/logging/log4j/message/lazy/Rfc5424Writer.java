@@ -0,0 +1,177 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.message.StructuredDataId;
+import org.apache.logging.log4j.util.StringBuilders;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the fields of a {@link FormattedDataMessage} as RFC 5424 STRUCTURED-DATA in a single pass, escaping
+ * {@code "}, {@code \} and {@code ]} in PARAM-VALUEs as they are written, so that a layout can emit the result
+ * without scanning it again.
+ *
+ * <p>By default all fields go into one SD-ELEMENT named by the message id. The fields of the context can be written
+ * as an SD-ELEMENT of their own, and named keys can be moved into further SD-ELEMENTs; SD-ELEMENTs other than the
+ * message's are left out when they have no fields.</p>
+ *
+ * <pre>
+ * Rfc5424Writer writer = Rfc5424Writer.newBuilder()
+ *     .setContextId("context@32473")
+ *     .addElement("origin@32473", "ip", "port")
+ *     .build();
+ * // [an_id a="1"][context@32473 host="h"][origin@32473 ip="10.0.0.1" port="80"]
+ * </pre>
+ */
+public final class Rfc5424Writer {
+  /** Writes every field into the message's SD-ELEMENT. */
+  public static final Rfc5424Writer DEFAULT = newBuilder().build();
+
+  private static final int MAX_NAME_LENGTH = 32;
+
+  private final String contextId;
+  private final String[] elementIds;
+  private final FieldProjection[] elementFields;
+  private final FieldProjection messageFields;
+
+  private Rfc5424Writer(final String contextId, final String[] elementIds, final FieldProjection[] elementFields,
+      final FieldProjection messageFields) {
+    this.contextId = contextId;
+    this.elementIds = elementIds;
+    this.elementFields = elementFields;
+    this.messageFields = messageFields;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * Appends the STRUCTURED-DATA of a message: its SD-ELEMENTs, or {@code -} if it has no id.
+   * @param message The message.
+   * @param sb The StringBuilder to append to.
+   */
+  public void writeStructuredData(final FormattedDataMessage message, final StringBuilder sb) {
+    final StructuredDataId id = message.getId();
+    if (id == null || id.getName() == null) {
+      sb.append('-');
+      return;
+    }
+    final boolean separateContext = contextId != null;
+    sb.append('[');
+    StringBuilders.appendValue(sb, id);
+    message.appendParams(sb, messageFields, !separateContext);
+    sb.append(']');
+    if (separateContext) {
+      final int mark = sb.length();
+      sb.append('[').append(contextId);
+      if (message.appendContextParams(sb, messageFields)) {
+        sb.append(']');
+      } else {
+        sb.setLength(mark);
+      }
+    }
+    for (int i = 0; i < elementIds.length; i++) {
+      final int mark = sb.length();
+      sb.append('[').append(elementIds[i]);
+      if (message.appendParams(sb, elementFields[i], true)) {
+        sb.append(']');
+      } else {
+        sb.setLength(mark);
+      }
+    }
+  }
+
+  /**
+   * Appends a PARAM-VALUE, escaping {@code "}, {@code \} and {@code ]}.
+   * @param value The value.
+   * @param sb The StringBuilder to append to.
+   */
+  public static void appendParamValue(final CharSequence value, final StringBuilder sb) {
+    final int length = value.length();
+    for (int i = 0; i < length; i++) {
+      final char c = value.charAt(i);
+      if (isParamValueEscaped(c)) {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+  }
+
+  static boolean isParamValueEscaped(final char c) {
+    return c == '"' || c == '\\' || c == ']';
+  }
+
+  static void validateName(final String name) {
+    if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+      throw new IllegalArgumentException("SD-IDs must have 1 to " + MAX_NAME_LENGTH + " characters: " + name);
+    }
+    for (int i = 0; i < name.length(); i++) {
+      final char c = name.charAt(i);
+      if (c < '!' || c > '~' || c == '=' || c == ']' || c == '"') {
+        throw new IllegalArgumentException("SD-IDs must contain printable US ASCII characters and may not contain "
+            + "a space, =, ], or \": " + name);
+      }
+    }
+  }
+
+  public static class Builder {
+    private FieldProjections projections = FieldProjections.getDefault();
+    private String contextId;
+    private final List<String> elementIds = new ArrayList<>();
+    private final List<String[]> elementKeys = new ArrayList<>();
+
+    /**
+     * Sets the scope of the projections that select the fields of each SD-ELEMENT.
+     * @param projections The scope, normally that of the configuration the writer is used in.
+     * @return this builder.
+     */
+    public Builder setProjections(final FieldProjections projections) {
+      this.projections = projections;
+      return this;
+    }
+
+    /**
+     * Writes the fields of the context as an SD-ELEMENT of their own.
+     * @param contextId The SD-ID of the context's SD-ELEMENT, or null to write them with the message's fields.
+     * @return this builder.
+     */
+    public Builder setContextId(final String contextId) {
+      if (contextId != null) {
+        validateName(contextId);
+      }
+      this.contextId = contextId;
+      return this;
+    }
+
+    /**
+     * Moves fields into an SD-ELEMENT of their own. Fields of the context may be moved too; a key already moved by
+     * an earlier element stays there.
+     * @param id The SD-ID of the SD-ELEMENT.
+     * @param keys The keys of the fields to move.
+     * @return this builder.
+     */
+    public Builder addElement(final String id, final String... keys) {
+      validateName(id);
+      elementIds.add(id);
+      elementKeys.add(keys.clone());
+      return this;
+    }
+
+    public Rfc5424Writer build() {
+      final FieldProjection[] elementFields = new FieldProjection[elementKeys.size()];
+      final List<String> moved = new ArrayList<>();
+      for (int i = 0; i < elementFields.length; i++) {
+        final List<String> keys = new ArrayList<>(Arrays.asList(elementKeys.get(i)));
+        keys.removeAll(moved);
+        elementFields[i] = projections.include(keys.toArray(new String[0]));
+        moved.addAll(keys);
+      }
+      final FieldProjection messageFields = moved.isEmpty()
+          ? FieldProjection.ALL
+          : projections.exclude(moved.toArray(new String[0]));
+      return new Rfc5424Writer(contextId, elementIds.toArray(new String[0]), elementFields, messageFields);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.AppenderRef;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.apache.logging.log4j.message.lazy.LazyMap.entry;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class ArenaReleaseAppenderTest {
+  static class FormattingAppender extends AbstractAppender {
+    final List<String> formatted = new CopyOnWriteArrayList<>();
+
+    FormattingAppender() {
+      super("format", null, null);
+    }
+
+    @Override
+    public void append(LogEvent event) {
+      formatted.add(event.getMessage().getFormattedMessage());
+    }
+  }
+
+  DefaultConfiguration config;
+  FormattingAppender format;
+  ArenaReleaseAppender appender;
+
+  @BeforeEach
+  void setup() {
+    MessageArena.attach(1024);
+    config = new DefaultConfiguration();
+    format = new FormattingAppender();
+    format.start();
+    config.addAppender(format);
+    appender = ArenaReleaseAppender.newBuilder()
+        .setConfiguration(config)
+        .withName("release")
+        .setAppenderRefs(AppenderRef.createAppenderRef("format", null, null))
+        .build();
+    appender.start();
+  }
+
+  @AfterEach
+  void teardown() {
+    appender.stop();
+    format.stop();
+    MessageArena.detach();
+  }
+
+  @Test
+  void itReleasesTheRegionOnceTheEventHasBeenAppended() {
+    LogEvent event = Log4jLogEvent.newBuilder()
+        .setMessage(new FormattedDataMessage("an_id", "a=%(a)", "a_type", Map.ofEntries(entry("a", "aVal"))))
+        .build();
+    assertThat(MessageArena.usedBytes(), is(greaterThan(0)));
+
+    appender.append(event);
+
+    assertThat(format.formatted, contains("a_type [an_id a=\"aVal\"] a=aVal"));
+    assertThat(MessageArena.usedBytes(), is(equalTo(0)));
+  }
+}
@@ -0,0 +1,152 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.AppenderRef;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.apache.logging.log4j.message.lazy.LazyMap.entry;
+import static org.apache.logging.log4j.message.lazy.LazyMap.lazy;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class CoalescingAppenderTest {
+  private static final long WINDOW_MILLIS = 50;
+
+  static class CapturingAppender extends AbstractAppender {
+    final List<LogEvent> events = new CopyOnWriteArrayList<>();
+
+    CapturingAppender() {
+      super("capture", null, null);
+    }
+
+    @Override
+    public void append(LogEvent event) {
+      events.add(event.toImmutable());
+    }
+  }
+
+  DefaultConfiguration config;
+  CapturingAppender capture;
+  CoalescingAppender appender;
+
+  @BeforeEach
+  void setup() {
+    config = new DefaultConfiguration();
+    capture = new CapturingAppender();
+    capture.start();
+    config.addAppender(capture);
+    appender = CoalescingAppender.newBuilder()
+        .setConfiguration(config)
+        .withName("coalesce")
+        .setAppenderRefs(AppenderRef.createAppenderRef("capture", null, null))
+        .setWindowMillis(WINDOW_MILLIS)
+        .build();
+    appender.start();
+  }
+
+  @AfterEach
+  void teardown() {
+    appender.stop();
+    capture.stop();
+  }
+
+  private void awaitEvents(int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (capture.events.size() < count && System.nanoTime() < deadline) {
+      Thread.sleep(WINDOW_MILLIS / 5);
+    }
+  }
+
+  private static LogEvent event(String id) {
+    return Log4jLogEvent.newBuilder()
+        .setMessage(new FormattedDataMessage(id, "Failure a=%(a)", "a_type", Map.ofEntries(entry("a", "aVal"))))
+        .build();
+  }
+
+  @Test
+  void itPassesTheFirstEventOfAWindowOn() {
+    appender.append(event("an_id"));
+
+    assertThat(capture.events.size(), is(equalTo(1)));
+  }
+
+  @Test
+  void itDropsRepeatsWithinAWindow() {
+    for (int i = 0; i < 100; i++) {
+      appender.append(event("an_id"));
+    }
+
+    assertThat(capture.events.size(), is(equalTo(1)));
+  }
+
+  @Test
+  void itPassesDifferentEventsOn() {
+    appender.append(event("an_id"));
+    appender.append(event("another_id"));
+    appender.append(Log4jLogEvent.newBuilder().setMessage(new SimpleMessage("plain")).build());
+
+    assertThat(capture.events.size(), is(equalTo(3)));
+  }
+
+  @Test
+  void itEmitsTheRepeatCountOnceTheWindowEnds() throws InterruptedException {
+    for (int i = 0; i < 5; i++) {
+      appender.append(event("an_id"));
+    }
+    awaitEvents(2);
+
+    assertThat(capture.events.size(), is(equalTo(2)));
+    assertThat(capture.events.get(1).getMessage().getFormattedMessage(),
+        is(equalTo("a_type [an_id a=\"aVal\" repeat_count=\"4\"] Failure a=aVal")));
+  }
+
+  @Test
+  void itEmitsPendingRepeatCountsOnStop() {
+    appender.append(event("an_id"));
+    appender.append(event("an_id"));
+    appender.stop();
+
+    assertThat(capture.events.size(), is(equalTo(2)));
+    assertThat(((FormattedDataMessage) capture.events.get(1).getMessage()).get("repeat_count"), is(equalTo("1")));
+  }
+
+  @Test
+  void itCoalescesArenaAndLazyFieldsWithoutInflating() throws InterruptedException {
+    MessageArena.attach(4096);
+    try {
+      Supplier<String> supplier = () -> "bVal";
+      for (int i = 0; i < 3; i++) {
+        appender.append(Log4jLogEvent.newBuilder()
+            .setMessage(new FormattedDataMessage("an_id", "Failure a=%(a)", "a_type",
+                Map.ofEntries(entry("a", "aVal"), entry("n", 42), lazy("b", supplier))))
+            .build());
+        // as an ArenaReleaseAppender in front of the appender would
+        ((FormattedDataMessage) capture.events.get(0).getMessage()).release();
+      }
+      assertThat(capture.events.size(), is(equalTo(1)));
+      assertThat(MessageArena.usedBytes(), is(greaterThan(0)));
+
+      awaitEvents(2);
+    } finally {
+      MessageArena.detach();
+    }
+
+    assertThat(capture.events.size(), is(equalTo(2)));
+    assertThat(capture.events.get(1).getMessage().getFormattedMessage(),
+        is(equalTo("a_type [an_id a=\"aVal\" b=\"bVal\" n=\"42\" repeat_count=\"2\"] Failure a=aVal")));
+  }
+}
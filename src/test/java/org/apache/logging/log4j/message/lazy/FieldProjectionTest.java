@@ -0,0 +1,168 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.apache.logging.log4j.message.lazy.LazyMap.entry;
+import static org.apache.logging.log4j.message.lazy.LazyMap.lazy;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+public class FieldProjectionTest {
+  Supplier<String> stringSupplier = new Supplier<String>() {
+    @Override
+    public String get() {
+      return "expensive";
+    }
+  };
+
+  Supplier<String> mockStringSupplier;
+  FormattedDataContext context = FormattedDataContext.of(Map.ofEntries(
+      entry("device", "dev"), entry("host", "a-host")));
+  FormattedDataMessage message;
+
+  @BeforeEach
+  void setup() {
+    mockStringSupplier = spy(stringSupplier);
+    message = new FormattedDataMessage(context, "an_id", "a=%(a)", "a_type",
+        Map.ofEntries(entry("a", "aVal"), lazy("b", mockStringSupplier), entry("c", "cVal")));
+  }
+
+  @Test
+  void itRendersOnlyIncludedFields() {
+    String json = message.asString(FormattedDataMessage.Format.JSON, null, FieldProjection.include("a", "device"));
+    assertThat(json, containsString("\"a\":\"aVal\""));
+    assertThat(json, containsString("\"device\":\"dev\""));
+    assertThat(json, not(containsString("\"c\"")));
+    assertThat(json, not(containsString("\"host\"")));
+    verify(mockStringSupplier, never()).get();
+  }
+
+  @Test
+  void itSkipsExcludedFields() {
+    String structured = message.asString(null, null, FieldProjection.exclude("b", "host"));
+    assertThat(structured, is(equalTo("[an_id a=\"aVal\" c=\"cVal\" device=\"dev\"]")));
+    verify(mockStringSupplier, never()).get();
+  }
+
+  @Test
+  void itProjectsXml() {
+    String xml = message.asString(FormattedDataMessage.Format.XML, null, FieldProjection.include("c"));
+    assertThat(xml, containsString("<Entry key=\"c\">cVal</Entry>"));
+    assertThat(xml, not(containsString("key=\"a\"")));
+    assertThat(xml, not(containsString("key=\"device\"")));
+    verify(mockStringSupplier, never()).get();
+  }
+
+  @Test
+  void itSelectsANamedProjectionFromTheMessageOptions() {
+    FieldProjection.register("projection-test-console", FieldProjection.include("a"));
+    String json = message.getFormattedMessage(new String[] {"JSON", "fields=projection-test-console"});
+    assertThat(json, containsString("\"a\":\"aVal\""));
+    assertThat(json, not(containsString("\"c\"")));
+    assertThat(json, not(containsString("\"device\"")));
+    verify(mockStringSupplier, never()).get();
+  }
+
+  @Test
+  void itRendersEverythingForAnUnknownName() {
+    String json = message.getFormattedMessage(new String[] {"JSON", "fields=projection-test-unknown"});
+    assertThat(json, containsString("\"b\":\"expensive\""));
+    assertThat(json, containsString("\"host\":\"a-host\""));
+  }
+
+  @Test
+  void itUsesTheProjectionRegisteredForAFormat() {
+    FieldProjection.register("XML", FieldProjection.exclude("b"));
+    try {
+      String xml = message.getFormattedMessage(new String[] {"XML"});
+      assertThat(xml, containsString("key=\"a\""));
+      assertThat(xml, not(containsString("key=\"b\"")));
+      assertThat(message.asString(FormattedDataMessage.Format.JSON, null), containsString("\"b\""));
+    } finally {
+      FieldProjection.register("XML", FieldProjection.ALL);
+    }
+  }
+
+  @Test
+  void itSeesKeysNamedAfterTheMessageWasFirstProjected() {
+    assertThat(message.asString(null, null, FieldProjection.exclude("b")), containsString("c=\"cVal\""));
+    assertThat(message.asString(null, null, FieldProjection.exclude("b", "projection-test-c")),
+        containsString("c=\"cVal\""));
+    message.with("projection-test-c", "new");
+    assertThat(message.asString(null, null, FieldProjection.exclude("b", "projection-test-c")),
+        not(containsString("projection-test-c")));
+  }
+
+  @Test
+  void itTestsKeys() {
+    FieldProjection included = FieldProjection.include("a");
+    assertThat(included.includes("a"), is(true));
+    assertThat(included.includes("projection-test-never-named"), is(false));
+    assertThat(FieldProjection.exclude("a").includes("projection-test-never-named"), is(true));
+    assertThat(FieldProjection.ALL.includes("a"), is(true));
+  }
+
+  @Test
+  void itResolvesKeyIndexesOncePerTemplate() {
+    FieldProjections scope = FieldProjections.getDefault();
+    scope.include("a");
+    FormattedDataMessage other = new FormattedDataMessage(context, "an_id", "a=%(a)", "a_type",
+        Map.ofEntries(entry("a", "other"), lazy("b", mockStringSupplier), entry("c", "cVal")));
+    message.asString(null, null);
+    other.asString(null, null);
+
+    assertThat(other.keyIndexes(scope), is(sameInstance(message.keyIndexes(scope))));
+  }
+
+  @Test
+  void itScopesProjectionsToAConfiguration() {
+    DefaultConfiguration config = new DefaultConfiguration();
+    config.getProperties().put("log4j.formattedDataMessage.fields.projection-test-scoped.include", "a");
+    FieldProjections scope = FieldProjections.of(config);
+
+    assertThat(FieldProjections.of(config), is(sameInstance(scope)));
+    assertThat(FieldProjections.of(new DefaultConfiguration()), is(not(sameInstance(scope))));
+    assertThat(scope.forName("projection-test-scoped").includes("c"), is(false));
+    assertThat(FieldProjection.forName("projection-test-scoped"), is(sameInstance(FieldProjection.ALL)));
+    assertThat(message.asString(null, null, scope.forName("projection-test-scoped")),
+        is(equalTo("[an_id a=\"aVal\"]")));
+  }
+
+  @Test
+  void itRejectsProjectionsOfAnotherScope() {
+    FieldProjection foreign = FieldProjections.of(new DefaultConfiguration()).include("a");
+    assertThrows(IllegalArgumentException.class, () -> FieldProjection.register("projection-test-foreign", foreign));
+  }
+
+  @Test
+  void itSelectsProjectionsOfTheConfigurationInPatterns() {
+    DefaultConfiguration config = new DefaultConfiguration();
+    config.getProperties().put("log4j.formattedDataMessage.fields.projection-test-pattern.include", "a");
+    PatternLayout layout = PatternLayout.newBuilder()
+        .withConfiguration(config)
+        .withPattern("%fdm{JSON}{fields=projection-test-pattern}")
+        .build();
+    LogEvent event = Log4jLogEvent.newBuilder().setMessage(message).build();
+
+    String json = layout.toSerializable(event);
+    assertThat(json, containsString("\"a\":\"aVal\""));
+    assertThat(json, not(containsString("\"c\"")));
+    verify(mockStringSupplier, never()).get();
+  }
+}
@@ -0,0 +1,163 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.util.IndexedReadOnlyStringMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.apache.logging.log4j.message.lazy.LazyMap.entry;
+import static org.apache.logging.log4j.message.lazy.LazyMap.lazy;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class FormattedDataContextTest {
+  Supplier<String> stringSupplier = new Supplier<String>() {
+    @Override
+    public String get() {
+      return "dVal";
+    }
+  };
+
+  FormattedDataContext context;
+  FormattedDataMessage message;
+
+  @BeforeEach
+  void setup() {
+    context = FormattedDataContext.of(Map.ofEntries(entry("service", "svc"), entry("device", "dev")));
+    message = new FormattedDataMessage(context, "a_message_id", "Message for %(device). a=%(a)", "a_message_type",
+        Map.ofEntries(entry("a", "aVal")));
+  }
+
+  @Test
+  void testMessageSubstitutesContextData() {
+    assertThat(message.getFormat(), is(equalTo("Message for dev. a=aVal")));
+  }
+
+  @Test
+  void testFullMessageMergesContextInKeyOrder() {
+    assertThat(message.getFormattedMessage(), is(equalTo("a_message_type [a_message_id a=\"aVal\" device=\"dev\" service=\"svc\"] Message for dev. a=aVal")));
+  }
+
+  @Test
+  void testJsonIncludesContext() {
+    String[] formats = { "JSON" };
+    assertThat(message.getFormattedMessage(formats), is(equalTo("{\"type\":\"a_message_type\", \"id\":\"a_message_id\", \"message\":\"Message for %(device). a=%(a)\", \"a\":\"aVal\", \"device\":\"dev\", \"service\":\"svc\"}")));
+  }
+
+  @Test
+  void testXmlIncludesContext() {
+    String[] formats = { "XML" };
+    assertThat(message.getFormattedMessage(formats), is(equalTo("<StructuredData>\n<type>a_message_type</type>\n<id>a_message_id</id>\n<message>Message for %(device). a=%(a)</message>\n<Map>\n  <Entry key=\"a\">aVal</Entry>\n  <Entry key=\"device\">dev</Entry>\n  <Entry key=\"service\">svc</Entry>\n</Map>\n</StructuredData>\n")));
+  }
+
+  @Test
+  void testOwnDataReplacesContextData() {
+    FormattedDataMessage shadowing = new FormattedDataMessage(context, "a_message_id", "for %(device)", "a_message_type",
+        Map.ofEntries(entry("device", "other")));
+    assertThat(shadowing.getFormattedMessage(), is(equalTo("a_message_type [a_message_id device=\"other\" service=\"svc\"] for other")));
+  }
+
+  @Test
+  void testGetDataIncludesContext() {
+    assertThat(message.getData(), is(equalTo(Map.of("a", "aVal", "device", "dev", "service", "svc"))));
+  }
+
+  @Test
+  void testOwnDataSortingAfterContextIsAppended() {
+    FormattedDataMessage after = new FormattedDataMessage(context, "a_message_id", "msg", "a_message_type",
+        Map.ofEntries(entry("z", "zVal")));
+    assertThat(after.toString(), is(equalTo("[a_message_id device=\"dev\" service=\"svc\" z=\"zVal\"]")));
+  }
+
+  @Test
+  void testReadApiIncludesContext() {
+    assertThat(message.containsKey("service"), is(true));
+    assertThat(message.get("service"), is(equalTo("svc")));
+    assertThat(message.get("a"), is(equalTo("aVal")));
+    assertThat(message.containsKey("missing"), is(false));
+
+    IndexedReadOnlyStringMap data = message.getIndexedReadOnlyStringMap();
+    assertThat(data.size(), is(equalTo(3)));
+    assertThat(data.getKeyAt(0), is(equalTo("a")));
+    assertThat(data.getValue("device"), is(equalTo("dev")));
+    assertThat(message.getParameters().length, is(equalTo(3)));
+
+    StringBuilder xml = new StringBuilder();
+    message.asXml(xml);
+    assertThat(xml.toString(), is(equalTo("<Map>\n  <Entry key=\"a\">aVal</Entry>\n  <Entry key=\"device\">dev</Entry>\n"
+        + "  <Entry key=\"service\">svc</Entry>\n</Map>")));
+  }
+
+  @Test
+  void testReadApiPrefersOwnData() {
+    FormattedDataMessage shadowing = new FormattedDataMessage(context, "a_message_id", "for %(device)", "a_message_type",
+        Map.ofEntries(entry("device", "other")));
+    assertThat(shadowing.get("device"), is(equalTo("other")));
+    assertThat(shadowing.getIndexedReadOnlyStringMap().getValue("device"), is(equalTo("other")));
+    assertThat(shadowing.getIndexedReadOnlyStringMap().size(), is(equalTo(2)));
+  }
+
+  @Test
+  void testNewInstanceKeepsContext() {
+    FormattedDataMessage copy = message.newInstance(Map.of("b", "bVal"));
+    assertThat(copy.toString(), is(equalTo("[a_message_id b=\"bVal\" device=\"dev\" service=\"svc\"]")));
+  }
+
+  @Test
+  void testDerivedContextAddsFields() {
+    FormattedDataContext derived = context.with(Map.of("account", "acct"));
+    assertThat(derived.size(), is(equalTo(3)));
+    assertThat(context.size(), is(equalTo(2)));
+    assertThat(derived.getValue("account"), is(equalTo("acct")));
+  }
+
+  @Test
+  void testDerivedContextKeepsMaxLength() {
+    FormattedDataContext wide = FormattedDataContext.of(Map.of("a_key_longer_than_thirty_two_chars", "x"), 64);
+    FormattedDataContext derived = wide.with(Map.of("another_key_longer_than_thirty_two", "y"));
+    assertThat(derived.size(), is(equalTo(2)));
+    assertThrows(IllegalArgumentException.class, () -> context.with(Map.of("another_key_longer_than_thirty_two", "y")));
+  }
+
+  @Test
+  void testInterleavedKeysSpliceContextRuns() {
+    FormattedDataContext wide = FormattedDataContext.of(Map.ofEntries(entry("b", "1"), entry("c", "2"),
+        entry("e", "3"), entry("f", "4"), entry("h", "5")));
+    FormattedDataMessage interleaved = new FormattedDataMessage(wide, "an_id", "msg", "a_type",
+        Map.ofEntries(entry("a", "own"), entry("d", "own"), entry("f", "own"), entry("g", "own")));
+    assertThat(interleaved.toString(), is(equalTo(
+        "[an_id a=\"own\" b=\"1\" c=\"2\" d=\"own\" e=\"3\" f=\"own\" g=\"own\" h=\"5\"]")));
+    String[] formats = { "JSON" };
+    assertThat(interleaved.getFormattedMessage(formats), is(equalTo("{\"type\":\"a_type\", \"id\":\"an_id\", "
+        + "\"message\":\"msg\", \"a\":\"own\", \"b\":\"1\", \"c\":\"2\", \"d\":\"own\", \"e\":\"3\", "
+        + "\"f\":\"own\", \"g\":\"own\", \"h\":\"5\"}")));
+    FormattedDataMessage leading = new FormattedDataMessage(wide, "an_id", "msg", "a_type",
+        Map.ofEntries(entry("d", "own")));
+    assertThat(leading.toString(), is(equalTo(
+        "[an_id b=\"1\" c=\"2\" d=\"own\" e=\"3\" f=\"4\" h=\"5\"]")));
+  }
+
+  @Test
+  void testContextValuesAreRenderedOnce() {
+    Supplier<String> mockStringSupplier = spy(stringSupplier);
+    FormattedDataContext lazyContext = FormattedDataContext.of(Map.ofEntries(lazy("d", mockStringSupplier)));
+
+    for (int i = 0; i < 3; i++) {
+      FormattedDataMessage each = new FormattedDataMessage(lazyContext, "an_id", "d=%(d)", "a_type", Map.of());
+      assertThat(each.getFormattedMessage(), is(equalTo("a_type [an_id d=\"dVal\"] d=dVal")));
+    }
+    verify(mockStringSupplier, times(1)).get();
+  }
+
+  @Test
+  void testContextKeysAreValidated() {
+    assertThrows(IllegalArgumentException.class, () -> FormattedDataContext.of(Map.of("type", "reserved")));
+  }
+}
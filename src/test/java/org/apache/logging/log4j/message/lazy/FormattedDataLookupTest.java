@@ -0,0 +1,93 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.lookup.Interpolator;
+import org.apache.logging.log4j.core.lookup.StrSubstitutor;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.apache.logging.log4j.message.lazy.LazyMap.entry;
+import static org.apache.logging.log4j.message.lazy.LazyMap.lazy;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+public class FormattedDataLookupTest {
+  Supplier<String> stringSupplier = new Supplier<String>() {
+    @Override
+    public String get() {
+      return "expensive";
+    }
+  };
+
+  Supplier<String> mockStringSupplier;
+  FormattedDataLookup lookup = new FormattedDataLookup();
+  LogEvent event;
+
+  @BeforeEach
+  void setup() {
+    mockStringSupplier = spy(stringSupplier);
+    FormattedDataContext context = FormattedDataContext.of(Map.ofEntries(entry("device", "dev")));
+    event = Log4jLogEvent.newBuilder()
+        .setMessage(new FormattedDataMessage(context, "an_id", "a=%(a)", "a_type",
+            Map.ofEntries(entry("a", "aVal"), lazy("b", mockStringSupplier))))
+        .build();
+  }
+
+  @Test
+  void itLooksUpReservedFields() {
+    assertThat(lookup.lookup(event, "type"), is(equalTo("a_type")));
+    assertThat(lookup.lookup(event, "id"), is(equalTo("an_id")));
+    assertThat(lookup.lookup(event, "message"), is(equalTo("a=%(a)")));
+  }
+
+  @Test
+  void itLooksUpDataAndContextFields() {
+    assertThat(lookup.lookup(event, "a"), is(equalTo("aVal")));
+    assertThat(lookup.lookup(event, "device"), is(equalTo("dev")));
+    assertThat(lookup.lookup(event, "missing"), is(nullValue()));
+  }
+
+  @Test
+  void itOnlyEvaluatesTheRequestedValue() {
+    lookup.lookup(event, "a");
+    verify(mockStringSupplier, never()).get();
+    assertThat(lookup.lookup(event, "b"), is(equalTo("expensive")));
+  }
+
+  @Test
+  void itOnlyEvaluatesTheRequestedContextValue() {
+    Supplier<String> contextSupplier = spy(stringSupplier);
+    FormattedDataContext context = FormattedDataContext.of(Map.ofEntries(entry("device", "dev"),
+        lazy("session", contextSupplier)));
+    LogEvent contextEvent = Log4jLogEvent.newBuilder()
+        .setMessage(new FormattedDataMessage(context, "an_id", "msg", "a_type", Map.ofEntries(entry("a", "aVal"))))
+        .build();
+
+    assertThat(lookup.lookup(contextEvent, "device"), is(equalTo("dev")));
+    verify(contextSupplier, never()).get();
+    assertThat(lookup.lookup(contextEvent, "session"), is(equalTo("expensive")));
+  }
+
+  @Test
+  void itIgnoresOtherMessages() {
+    LogEvent plain = Log4jLogEvent.newBuilder().setMessage(new SimpleMessage("plain")).build();
+    assertThat(lookup.lookup(plain, "type"), is(nullValue()));
+    assertThat(lookup.lookup("type"), is(nullValue()));
+  }
+
+  @Test
+  void itWorksAsARoutingPattern() {
+    StrSubstitutor substitutor = new StrSubstitutor(new Interpolator(null, null));
+    assertThat(substitutor.replace(event, "${fdm:type}-${fdm:device}"), is(equalTo("a_type-dev")));
+  }
+}
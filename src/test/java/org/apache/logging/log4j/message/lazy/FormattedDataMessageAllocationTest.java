@@ -0,0 +1,200 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.apache.logging.log4j.message.lazy.LazyMap.entry;
+import static org.apache.logging.log4j.message.lazy.LazyMap.lazy;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+/**
+ * Guards the construction and render paths against allocation regressions. Each operation is run over a batch of
+ * freshly built messages, after warmup, and the bytes allocated per message by the test thread must stay within the
+ * budget checked in as {@code allocation-budgets.properties}. Shapes named {@code arena-*} are built with a
+ * {@link MessageArena} attached and released after each batch; operations named {@code *_projected} render through
+ * a {@link FieldProjection} that drops some of the fields.
+ *
+ * <p>The suite is tagged {@code allocation}, which the default surefire execution excludes; the
+ * {@code allocation-budgets} execution runs it in a JVM of its own on every {@code mvn test}, so that other tests do
+ * not skew the thread's allocation counter. Run it alone with
+ * {@code mvn test -Dtest=FormattedDataMessageAllocationTest}.</p>
+ */
+@Tag("allocation")
+public class FormattedDataMessageAllocationTest {
+  private static final String BUDGETS = "/allocation-budgets.properties";
+  private static final int BATCH = 2_000;
+  private static final int WARMUP_ROUNDS = 20;
+  private static final int MEASURED_ROUNDS = 5;
+  private static final int ARENA_BYTES = 4 << 20;
+  private static final String ARENA_PREFIX = "arena-";
+
+  private static final FormattedDataContext CONTEXT = FormattedDataContext.of(Map.ofEntries(
+      entry("service", "faceplate-api"), entry("host", "host-1.example.com"), entry("region", "us-east-1"),
+      entry("account", "12345"), entry("device", "device-67890"), entry("version", "1.2.3"),
+      entry("request", "7f3c2a9e-0b1d-4e5f-8a6b-9c0d1e2f3a4b"), entry("user", "someone@example.com")));
+
+  private static final Map<String, Object> WIDE = wideData();
+
+  private static final FieldProjection PROJECTION = FieldProjection.exclude("c", "account", "host", "f1", "f2", "f3",
+      "f4", "f5", "f6");
+
+  private static final Map<String, Supplier<FormattedDataMessage>> SHAPES = new TreeMap<>(Map.of(
+      "empty", () -> new FormattedDataMessage("an_id", "Nothing to see here.", "a_type", Map.of()),
+      "small", FormattedDataMessageAllocationTest::small,
+      "wide", FormattedDataMessageAllocationTest::wide,
+      "context", () -> new FormattedDataMessage(CONTEXT, "an_id", "For %(device): a=%(a) b=%(b)", "a_type",
+          Map.ofEntries(entry("a", "aVal"), lazy("b", () -> "bVal"), entry("c", "cVal"))),
+      ARENA_PREFIX + "small", FormattedDataMessageAllocationTest::small,
+      ARENA_PREFIX + "wide", FormattedDataMessageAllocationTest::wide));
+
+  private static final Map<String, Function<FormattedDataMessage, Object>> OPERATIONS = new TreeMap<>(Map.of(
+      "STRUCTURED", m -> m.asString(null, null),
+      "FULL", m -> m.asString(FormattedDataMessage.Format.FULL, null),
+      "JSON", m -> m.asString(FormattedDataMessage.Format.JSON, null),
+      "INTERPOLATED_JSON", m -> m.asString(FormattedDataMessage.Format.INTERPOLATED_JSON, null),
+      "XML", m -> m.asString(FormattedDataMessage.Format.XML, null),
+      "INTERPOLATED_XML", m -> m.asString(FormattedDataMessage.Format.INTERPOLATED_XML, null),
+      "FULL_projected", m -> m.asString(FormattedDataMessage.Format.FULL, null, PROJECTION),
+      "JSON_projected", m -> m.asString(FormattedDataMessage.Format.JSON, null, PROJECTION),
+      "getFormat", FormattedDataMessage::getFormat));
+
+  private static com.sun.management.ThreadMXBean threads;
+  private static Properties budgets;
+
+  private static FormattedDataMessage small() {
+    return new FormattedDataMessage("an_id", "This is a message. a=%(a) b=%(b)", "a_type",
+        Map.ofEntries(entry("a", "aVal"), lazy("b", () -> "bVal"), entry("c", "cVal")));
+  }
+
+  private static FormattedDataMessage wide() {
+    return new FormattedDataMessage("an_id", "Wide message f0=%(f0) f7=%(f7) f15=%(f15)", "a_type", WIDE);
+  }
+
+  private static Map<String, Object> wideData() {
+    Map<String, Object> data = new TreeMap<>();
+    for (int i = 0; i < 16; i++) {
+      data.put("f" + i, "value number " + i);
+    }
+    return data;
+  }
+
+  @BeforeAll
+  static void setupAll() throws IOException {
+    Assumptions.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+        "thread allocation counters are not available on this JVM");
+    threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported(),
+        "thread allocation counters are not supported on this JVM");
+    threads.setThreadAllocatedMemoryEnabled(true);
+    budgets = new Properties();
+    try (InputStream in = FormattedDataMessageAllocationTest.class.getResourceAsStream(BUDGETS)) {
+      budgets.load(in);
+    }
+  }
+
+  static Stream<Arguments> shapesAndOperations() {
+    List<Arguments> arguments = new ArrayList<>();
+    for (String shape : SHAPES.keySet()) {
+      for (String operation : OPERATIONS.keySet()) {
+        arguments.add(Arguments.of(shape, operation));
+      }
+    }
+    return arguments.stream();
+  }
+
+  @AfterEach
+  void teardown() {
+    MessageArena.detach();
+  }
+
+  @ParameterizedTest(name = "{0} {1}")
+  @MethodSource("shapesAndOperations")
+  void testBytesPerEventStayWithinBudget(String shape, String operation) {
+    Supplier<FormattedDataMessage> factory = SHAPES.get(shape);
+    Function<FormattedDataMessage, Object> render = OPERATIONS.get(operation);
+    assertWithinBudget(shape, operation, () -> measure(factory, render));
+  }
+
+  @ParameterizedTest(name = "{0} construct")
+  @MethodSource("shapes")
+  void testConstructionBytesPerEventStayWithinBudget(String shape) {
+    Supplier<FormattedDataMessage> factory = SHAPES.get(shape);
+    assertWithinBudget(shape, "construct", () -> measureConstruction(factory));
+  }
+
+  static Stream<String> shapes() {
+    return SHAPES.keySet().stream();
+  }
+
+  private static void assertWithinBudget(String shape, String operation, LongSupplier measurement) {
+    String budget = budgets.getProperty(shape + "." + operation);
+    assertThat("no budget checked in for " + shape + "." + operation, budget, is(notNullValue()));
+    if (shape.startsWith(ARENA_PREFIX)) {
+      MessageArena.attach(ARENA_BYTES);
+    }
+    for (int round = 0; round < WARMUP_ROUNDS; round++) {
+      measurement.getAsLong();
+    }
+    long bytesPerEvent = Long.MAX_VALUE;
+    for (int round = 0; round < MEASURED_ROUNDS; round++) {
+      bytesPerEvent = Math.min(bytesPerEvent, measurement.getAsLong());
+    }
+    assertThat(shape + "." + operation + " bytes per event", bytesPerEvent,
+        is(lessThanOrEqualTo(Long.parseLong(budget.trim()))));
+  }
+
+  private static long measure(Supplier<FormattedDataMessage> factory, Function<FormattedDataMessage, Object> render) {
+    FormattedDataMessage[] messages = new FormattedDataMessage[BATCH];
+    for (int i = 0; i < BATCH; i++) {
+      messages[i] = factory.get();
+    }
+    Object[] results = new Object[BATCH];
+    long threadId = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < BATCH; i++) {
+      results[i] = render.apply(messages[i]);
+    }
+    long after = threads.getThreadAllocatedBytes(threadId);
+    release(messages);
+    return (after - before) / BATCH;
+  }
+
+  private static long measureConstruction(Supplier<FormattedDataMessage> factory) {
+    FormattedDataMessage[] messages = new FormattedDataMessage[BATCH];
+    long threadId = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < BATCH; i++) {
+      messages[i] = factory.get();
+    }
+    long after = threads.getThreadAllocatedBytes(threadId);
+    release(messages);
+    return (after - before) / BATCH;
+  }
+
+  private static void release(FormattedDataMessage[] messages) {
+    for (FormattedDataMessage message : messages) {
+      message.release();
+    }
+  }
+}
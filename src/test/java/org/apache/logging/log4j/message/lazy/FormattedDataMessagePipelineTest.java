@@ -0,0 +1,133 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.logging.log4j.message.lazy.LazyMap.entry;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+/**
+ * Drives the pipeline of {@code log4j2.xml}, with Root routed through its Async appender to the Kafka appender and
+ * LogstashLayout, against an {@link InProcessKafkaBroker}, and reports events/s and latency percentiles from log call
+ * to the record reaching the broker. The configuration is loaded as it is checked in; only the
+ * {@code kafka.bootstrap.servers} and {@code kafka.appender} properties it reads are set. Console output is discarded
+ * while the harness runs, so that the terminal does not throttle it. Tagged slow; run it with
+ * {@code mvn test -Dtest=FormattedDataMessagePipelineTest -Dtest.excludeTags=none}, optionally setting
+ * {@code pipeline.threads}, {@code pipeline.events} (per thread) and {@code pipeline.config}.
+ */
+@Tag("slow")
+public class FormattedDataMessagePipelineTest {
+  private static final int THREADS = Integer.getInteger("pipeline.threads", 4);
+  private static final int EVENTS_PER_THREAD = Integer.getInteger("pipeline.events", 100_000);
+  private static final String CONFIG = System.getProperty("pipeline.config", "classpath:log4j2.xml");
+  private static final String BOOTSTRAP_SERVERS_PROPERTY = "kafka.bootstrap.servers";
+  private static final String APPENDER_PROPERTY = "kafka.appender";
+  private static final long DRAIN_TIMEOUT_SECONDS = 120;
+
+  private static final FormattedDataContext FIELDS = FormattedDataContext.of(Map.ofEntries(
+      entry("service", "faceplate-api"), entry("host", "host-1.example.com"), entry("region", "us-east-1")));
+
+  @Test
+  void reportsThroughputAndLatency() throws Exception {
+    final int total = THREADS * EVENTS_PER_THREAD;
+    final long[] startNanos = new long[total];
+    final Histogram latencies = new ConcurrentHistogram(3);
+    final PrintStream console = System.out;
+    final String servers = System.getProperty(BOOTSTRAP_SERVERS_PROPERTY);
+    final String appender = System.getProperty(APPENDER_PROPERTY);
+    final InProcessKafkaBroker broker = new InProcessKafkaBroker(startNanos, latencies);
+    final LoggerContext loggerContext = new LoggerContext("pipeline-harness", null, configLocation());
+    long elapsedNanos;
+    try {
+      System.setProperty(BOOTSTRAP_SERVERS_PROPERTY, broker.bootstrapServers());
+      System.setProperty(APPENDER_PROPERTY, "Async");
+      System.setOut(new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+      }));
+      loggerContext.start();
+      final Logger logger = loggerContext.getLogger(FormattedDataMessagePipelineTest.class.getName());
+      final CountDownLatch start = new CountDownLatch(1);
+      final Thread[] threads = new Thread[THREADS];
+      for (int t = 0; t < THREADS; t++) {
+        final int first = t * EVENTS_PER_THREAD;
+        threads[t] = new Thread(() -> {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+          final String threadName = Thread.currentThread().getName();
+          for (int seq = first; seq < first + EVENTS_PER_THREAD; seq++) {
+            startNanos[seq] = System.nanoTime();
+            logger.info(new FormattedDataMessage(FIELDS, "pipeline_event", "Event %(seq) from %(thread)", "harness",
+                Map.ofEntries(
+                    entry("seq", InProcessKafkaBroker.SEQUENCE_PREFIX + seq),
+                    entry("thread", threadName))));
+          }
+        }, "pipeline-producer-" + t);
+        threads[t].start();
+      }
+      final long startedAt = System.nanoTime();
+      start.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT_SECONDS);
+      while (broker.received() < total && System.nanoTime() < deadline) {
+        Thread.sleep(1);
+      }
+      elapsedNanos = System.nanoTime() - startedAt;
+    } finally {
+      loggerContext.stop();
+      broker.close();
+      System.setOut(console);
+      restore(BOOTSTRAP_SERVERS_PROPERTY, servers);
+      restore(APPENDER_PROPERTY, appender);
+    }
+
+    System.out.printf("pipeline: %d threads x %d events in %.3f s = %.0f events/s%n",
+        THREADS, EVENTS_PER_THREAD, elapsedNanos / 1e9, broker.received() * 1e9 / elapsedNanos);
+    System.out.printf("latency (us): p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+        latencies.getValueAtPercentile(50) / 1e3, latencies.getValueAtPercentile(90) / 1e3,
+        latencies.getValueAtPercentile(99) / 1e3, latencies.getValueAtPercentile(99.9) / 1e3,
+        latencies.getMaxValue() / 1e3);
+    assertThat(broker.received(), is(equalTo((long) total)));
+  }
+
+  private static void restore(String property, String value) {
+    if (value == null) {
+      System.clearProperty(property);
+    } else {
+      System.setProperty(property, value);
+    }
+  }
+
+  private static URI configLocation() throws URISyntaxException {
+    if (CONFIG.startsWith("classpath:")) {
+      return FormattedDataMessagePipelineTest.class.getResource("/" + CONFIG.substring("classpath:".length())).toURI();
+    }
+    return new File(CONFIG).toURI();
+  }
+}
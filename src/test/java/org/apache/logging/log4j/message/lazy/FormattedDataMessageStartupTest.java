@@ -0,0 +1,74 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+/**
+ * Measures time-to-first-formatted-message by running {@link StartupProbe} in fresh JVMs, cold and after warming its
+ * template, and reports the medians. Tagged slow; run it with
+ * {@code mvn test -Dtest=FormattedDataMessageStartupTest -Dtest.excludeTags=none}, optionally setting
+ * {@code startup.runs}.
+ */
+@Tag("slow")
+public class FormattedDataMessageStartupTest {
+  private static final int RUNS = Integer.getInteger("startup.runs", 10);
+
+  @Test
+  void reportsTimeToFirstFormattedMessage() throws Exception {
+    final long[] cold = new long[RUNS];
+    final long[] warmup = new long[RUNS];
+    final long[] warm = new long[RUNS];
+    for (int run = 0; run < RUNS; run++) {
+      cold[run] = probe("cold").get("first");
+      final Map<String, Long> warmed = probe("warm");
+      warmup[run] = warmed.get("warmup");
+      warm[run] = warmed.get("first");
+    }
+
+    System.out.printf("startup: %d runs, median time to first formatted message (ms): cold=%.2f "
+        + "warmup=%.2f after-warmup=%.2f%n", RUNS, median(cold) / 1e6, median(warmup) / 1e6, median(warm) / 1e6);
+  }
+
+  private static Map<String, Long> probe(final String mode) throws IOException, InterruptedException {
+    final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    final Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        StartupProbe.class.getName(), mode)
+        .redirectErrorStream(true)
+        .start();
+    final Map<String, Long> timings = new HashMap<>();
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final int equals = line.indexOf('=');
+        if (equals > 0 && line.substring(equals + 1).matches("\\d+")) {
+          timings.put(line.substring(0, equals), Long.parseLong(line.substring(equals + 1)));
+        } else {
+          System.out.println(line);
+        }
+      }
+    }
+    assertThat(process.waitFor(), is(equalTo(0)));
+    return timings;
+  }
+
+  private static double median(final long[] values) {
+    final long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    final int middle = sorted.length / 2;
+    return sorted.length % 2 == 0 ? (sorted[middle - 1] + sorted[middle]) / 2.0 : sorted[middle];
+  }
+}
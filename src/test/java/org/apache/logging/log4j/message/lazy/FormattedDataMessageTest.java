@@ -90,6 +90,62 @@ public class FormattedDataMessageTest {
     assertThat(message.getFormattedMessage(formats), is(equalTo("{\"type\":\"a_message_type\", \"id\":\"a_message_id\", \"message\":\"This is a message. a=aVal b=bVal\", \"a\":\"aVal\", \"b\":\"bVal\", \"c\":\"cVal\"}")));
   }
 
+  @Test
+  void testMutableValuesAreCapturedAtConstruction() {
+    StringBuilder sb = new StringBuilder("before");
+    FormattedDataMessage captured = new FormattedDataMessage(messageId, "sb=%(sb)", messageType, Map.of("sb", sb));
+    sb.append(" after");
+    assertThat(captured.getFormat(), is(equalTo("sb=before")));
+  }
+
+  @Test
+  void testMutableValuesAreCapturedByWith() {
+    StringBuilder sb = new StringBuilder("before");
+    message.with("d", sb);
+    sb.append(" after");
+    assertThat(message.toString(), is(equalTo("[a_message_id a=\"aVal\" b=\"bVal\" c=\"cVal\" d=\"before\"]")));
+  }
+
+  @Test
+  void testHashCodeChangesWithData() {
+    FormattedDataMessage same = new FormattedDataMessage(messageId, messageFormat, messageType, dataFields);
+    int before = message.hashCode();
+    assertThat(same.hashCode(), is(equalTo(before)));
+    message.with("d", "dVal");
+    assertThat(message.hashCode() == before, is(false));
+    assertThat(message.equals(same), is(false));
+  }
+
+  @Test
+  void testRenderingReflectsReplacedValues() {
+    message.getFormattedMessage();
+    message.with("c", "newVal");
+    assertThat(message.toString(), is(equalTo("[a_message_id a=\"aVal\" b=\"bVal\" c=\"newVal\"]")));
+  }
+
+  @Test
+  void testValuesAreInsertedLiterally() {
+    message = new FormattedDataMessage(messageId, "cost=%(a) path=%(b)", messageType,
+        Map.ofEntries(entry("a", "$1"), entry("b", "C:\\temp")));
+    assertThat(message.getFormat(), is(equalTo("cost=$1 path=C:\\temp")));
+  }
+
+  @Test
+  void testEscapesAndMissingKeys() {
+    message = new FormattedDataMessage(messageId, "\\%(a) %(a) %(missing) %() %(open", messageType,
+        Map.ofEntries(entry("a", "aVal")));
+    assertThat(message.getFormat(), is(equalTo("%(a) aVal %(missing) %() %(open")));
+  }
+
+  @Test
+  void testJsonHeaderFollowsType() {
+    message.getFormattedMessage(new String[] { "JSON" });
+    FormattedDataMessage other = new FormattedDataMessage(messageId, messageFormat, "other_type", dataFields);
+    assertThat(other.getFormattedMessage(new String[] { "JSON" }), is(equalTo(
+        "{\"type\":\"other_type\", \"id\":\"a_message_id\", \"message\":\"This is a message. a=%(a) b=%(b)\", "
+            + "\"a\":\"aVal\", \"b\":\"bVal\", \"c\":\"cVal\"}")));
+  }
+
   @Test
   void testLazyValuesAreCached() {
 
@@ -0,0 +1,108 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.net.Facility;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.apache.logging.log4j.message.lazy.LazyMap.entry;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class FormattedDataRfc5424LayoutTest {
+  FormattedDataRfc5424Layout layout = FormattedDataRfc5424Layout.newBuilder()
+      .setFacility(Facility.LOCAL0)
+      .setHostName("host")
+      .setAppName("app")
+      .setProcId("42")
+      .setElements("origin@32473=ip")
+      .build();
+
+  private static LogEvent event(Message message) {
+    return Log4jLogEvent.newBuilder()
+        .setLevel(Level.INFO)
+        .setTimeMillis(1_000_000_000_123L)
+        .setMessage(message)
+        .build();
+  }
+
+  @Test
+  void itWritesFormattedDataMessages() {
+    FormattedDataMessage message = new FormattedDataMessage("an_id", "Failed for %(a)", "a_type",
+        Map.ofEntries(entry("a", "\"b\""), entry("ip", "10.0.0.1")));
+
+    assertThat(layout.toSerializable(event(message)), is(equalTo(
+        "<134>1 2001-09-09T01:46:40.123Z host app 42 a_type [an_id a=\"\\\"b\\\"\"][origin@32473 ip=\"10.0.0.1\"] "
+            + "Failed for \"b\"")));
+  }
+
+  @Test
+  void itWritesOtherMessagesWithNilStructuredData() {
+    assertThat(layout.toSerializable(event(new SimpleMessage("plain"))), is(equalTo(
+        "<134>1 2001-09-09T01:46:40.123Z host app 42 - - plain")));
+  }
+
+  @Test
+  void itSanitizesTheMsgId() {
+    FormattedDataMessage spaced = new FormattedDataMessage("an_id", "msg", "a type\u00e9", Map.of());
+    FormattedDataMessage empty = new FormattedDataMessage("an_id", "msg", "", Map.of());
+
+    assertThat(layout.toSerializable(event(spaced)), is(equalTo(
+        "<134>1 2001-09-09T01:46:40.123Z host app 42 a_type_ [an_id] msg")));
+    assertThat(layout.toSerializable(event(empty)), is(equalTo(
+        "<134>1 2001-09-09T01:46:40.123Z host app 42 - [an_id] msg")));
+  }
+
+  @Test
+  void itSanitizesTheHeaderFields() {
+    FormattedDataRfc5424Layout sanitized = FormattedDataRfc5424Layout.newBuilder()
+        .setHostName("my host")
+        .setAppName("app\u00e9abcdefghijklmnopqrstuvwxyzabcdefghijklmnopqrstuvwxyz")
+        .setProcId("")
+        .build();
+
+    assertThat(sanitized.toSerializable(event(new SimpleMessage("plain"))), is(equalTo(
+        "<134>1 2001-09-09T01:46:40.123Z my_host app_abcdefghijklmnopqrstuvwxyzabcdefghijklmnopqr - - - plain")));
+  }
+
+  @Test
+  void itEncodesWhatItSerializes() {
+    FormattedDataMessage message = new FormattedDataMessage("an_id", "Failed for %(a)", "a_type",
+        Map.ofEntries(entry("a", "caf\u00e9"), entry("ip", "10.0.0.1")));
+    ByteBuffer buffer = ByteBuffer.allocate(1024);
+    ByteBufferDestination destination = new ByteBufferDestination() {
+      @Override
+      public ByteBuffer getByteBuffer() {
+        return buffer;
+      }
+
+      @Override
+      public ByteBuffer drain(ByteBuffer buf) {
+        return buf;
+      }
+
+      @Override
+      public void writeBytes(ByteBuffer data) {
+        buffer.put(data);
+      }
+
+      @Override
+      public void writeBytes(byte[] data, int offset, int length) {
+        buffer.put(data, offset, length);
+      }
+    };
+
+    layout.encode(event(message), destination);
+    buffer.flip();
+    assertThat(StandardCharsets.UTF_8.decode(buffer).toString(), is(equalTo(layout.toSerializable(event(message)))));
+  }
+}
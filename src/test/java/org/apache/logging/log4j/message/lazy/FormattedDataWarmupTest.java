@@ -0,0 +1,59 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.message.StructuredDataId;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class FormattedDataWarmupTest {
+  @Test
+  void itReadsTemplatesFromTheClasspath() {
+    List<String> lines = FormattedDataWarmup.readTemplates("formatted-data-templates.txt");
+
+    assertThat(lines, hasSize(4));
+    assertThat(lines.get(1), is(equalTo("warmup_type\twarmup_id\tWarmed %(a) and %(b)")));
+  }
+
+  @Test
+  void itReportsMissingTemplates() {
+    assertThat(FormattedDataWarmup.readTemplates("no-such-templates.txt"), is(empty()));
+  }
+
+  @Test
+  void itWarmsTemplatesAndJsonHeaders() {
+    List<String> lines = FormattedDataWarmup.readTemplates("formatted-data-templates.txt");
+
+    assertThat(FormattedDataWarmup.warm(lines), is(2));
+
+    StringBuilder sb = new StringBuilder();
+    assertThat(MessageTemplate.of("Warmed %(a) and %(b)")
+        .appendJsonHeader("warmup_type", new StructuredDataId("warmup_id", null, null), sb), is(true));
+    assertThat(sb.toString(), is(equalTo(
+        "{\"type\":\"warmup_type\", \"id\":\"warmup_id\", \"message\":\"Warmed %(a) and %(b)\"")));
+  }
+
+  @Test
+  void itWarmsBareTemplatesWithoutCachingAJsonHeader() {
+    FormattedDataWarmup.warm(FormattedDataWarmup.readTemplates("formatted-data-templates.txt"));
+
+    MessageTemplate bare = MessageTemplate.cached("Plain %(c)");
+    assertThat(bare.keyIndexes(), is(notNullValue()));
+    assertThat(bare.appendJsonHeader("warmup", new StructuredDataId("warmup", null, null), new StringBuilder()),
+        is(false));
+  }
+
+  @Test
+  void itSkipsTemplatesThatFail() {
+    List<String> lines = Arrays.asList("bad\tan_id_longer_than_thirty_two_characters\t%(a)", "fine %(a)");
+
+    assertThat(FormattedDataWarmup.warm(lines), is(1));
+  }
+}
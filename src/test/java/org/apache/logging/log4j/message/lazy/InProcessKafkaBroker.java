@@ -0,0 +1,183 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.HdrHistogram.Histogram;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.UnsupportedVersionException;
+import org.apache.kafka.common.network.ListenerName;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.requests.AbstractRequest;
+import org.apache.kafka.common.requests.AbstractResponse;
+import org.apache.kafka.common.requests.ApiVersionsRequest;
+import org.apache.kafka.common.requests.ApiVersionsResponse;
+import org.apache.kafka.common.requests.MetadataRequest;
+import org.apache.kafka.common.requests.MetadataResponse;
+import org.apache.kafka.common.requests.ProduceRequest;
+import org.apache.kafka.common.requests.ProduceResponse;
+import org.apache.kafka.common.requests.RequestContext;
+import org.apache.kafka.common.requests.RequestHeader;
+import org.apache.kafka.common.security.auth.KafkaPrincipal;
+import org.apache.kafka.common.security.auth.SecurityProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Kafka broker stand-in listening on a loopback port, so that the Kafka appender's real producer can be driven
+ * without a cluster: point {@code bootstrap.servers} at {@link #bootstrapServers()}. It answers ApiVersions, Metadata
+ * and Produce requests, with a single partition led by itself for every topic, and keeps only counts and latencies.
+ * Records carry their sequence number as a {@code harness-seq-<n>} value; the latency of a record is the time from
+ * {@code startNanos[n]} to the moment the stand-in reads it off the wire.
+ */
+class InProcessKafkaBroker implements AutoCloseable {
+  static final String SEQUENCE_PREFIX = "harness-seq-";
+
+  private static final byte[] MARKER = SEQUENCE_PREFIX.getBytes(StandardCharsets.US_ASCII);
+  private static final ListenerName LISTENER = ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT);
+
+  private final long[] startNanos;
+  private final Histogram latencies;
+  private final AtomicLong received = new AtomicLong();
+  private final ServerSocket server;
+  private final Node node;
+  private final List<Socket> connections = new CopyOnWriteArrayList<>();
+
+  InProcessKafkaBroker(long[] startNanos, Histogram latencies) throws IOException {
+    this.startNanos = startNanos;
+    this.latencies = latencies;
+    this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    this.node = new Node(0, server.getInetAddress().getHostAddress(), server.getLocalPort());
+    Thread acceptor = new Thread(this::accept, "kafka-stand-in-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  String bootstrapServers() {
+    return node.host() + ":" + node.port();
+  }
+
+  long received() {
+    return received.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+    for (Socket connection : connections) {
+      connection.close();
+    }
+  }
+
+  private void accept() {
+    while (!server.isClosed()) {
+      final Socket socket;
+      try {
+        socket = server.accept();
+        socket.setTcpNoDelay(true);
+      } catch (IOException e) {
+        return; // closed
+      }
+      connections.add(socket);
+      Thread connection = new Thread(() -> serve(socket), "kafka-stand-in-" + socket.getPort());
+      connection.setDaemon(true);
+      connection.start();
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+      while (true) {
+        byte[] frame = new byte[in.readInt()];
+        in.readFully(frame);
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        RequestHeader header = RequestHeader.parse(buffer);
+        RequestContext context = new RequestContext(header, "harness", socket.getInetAddress(),
+            KafkaPrincipal.ANONYMOUS, LISTENER, SecurityProtocol.PLAINTEXT);
+        AbstractResponse response = respond(context.parseRequest(buffer).request);
+        if (response != null) {
+          ByteBuffer body = response.serialize(header.apiVersion(), header.toResponseHeader());
+          byte[] bytes = new byte[body.remaining()];
+          body.get(bytes);
+          out.writeInt(bytes.length);
+          out.write(bytes);
+          out.flush();
+        }
+      }
+    } catch (IOException e) {
+      // the producer or the stand-in closed the connection
+    }
+  }
+
+  private AbstractResponse respond(AbstractRequest request) {
+    if (request instanceof ApiVersionsRequest) {
+      return ApiVersionsResponse.defaultApiVersionsResponse();
+    }
+    if (request instanceof MetadataRequest) {
+      List<MetadataResponse.TopicMetadata> topics = new ArrayList<>();
+      List<String> requested = ((MetadataRequest) request).topics();
+      if (requested != null) {
+        for (String topic : requested) {
+          topics.add(new MetadataResponse.TopicMetadata(Errors.NONE, topic, false, List.of(
+              new MetadataResponse.PartitionMetadata(Errors.NONE, 0, node, List.of(node), List.of(node), List.of()))));
+        }
+      }
+      return new MetadataResponse(List.of(node), "in-process", node.id(), topics);
+    }
+    if (request instanceof ProduceRequest) {
+      ProduceRequest produce = (ProduceRequest) request;
+      Map<TopicPartition, ProduceResponse.PartitionResponse> responses = new HashMap<>();
+      for (Map.Entry<TopicPartition, MemoryRecords> partition : produce.partitionRecordsOrFail().entrySet()) {
+        long now = System.nanoTime();
+        long baseOffset = received.get();
+        for (Record record : partition.getValue().records()) {
+          int seq = record.hasValue() ? sequenceOf(record.value()) : -1;
+          if (seq >= 0 && seq < startNanos.length) {
+            latencies.recordValue(Math.max(0, now - startNanos[seq]));
+          }
+          received.incrementAndGet();
+        }
+        responses.put(partition.getKey(),
+            new ProduceResponse.PartitionResponse(Errors.NONE, baseOffset, RecordBatch.NO_TIMESTAMP, 0));
+      }
+      return produce.acks() == 0 ? null : new ProduceResponse(responses);
+    }
+    return request.getErrorResponse(new UnsupportedVersionException("The stand-in does not serve " + request));
+  }
+
+  static int sequenceOf(ByteBuffer value) {
+    int start = value.position();
+    int end = value.limit();
+    outer:
+    for (int i = start; i + MARKER.length < end; i++) {
+      for (int j = 0; j < MARKER.length; j++) {
+        if (value.get(i + j) != MARKER[j]) {
+          continue outer;
+        }
+      }
+      int seq = -1;
+      for (int k = i + MARKER.length; k < end && value.get(k) >= '0' && value.get(k) <= '9'; k++) {
+        seq = (seq < 0 ? 0 : seq * 10) + (value.get(k) - '0');
+      }
+      return seq;
+    }
+    return -1;
+  }
+}
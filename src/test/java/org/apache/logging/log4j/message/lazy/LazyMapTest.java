@@ -4,13 +4,21 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
+import static org.apache.logging.log4j.message.lazy.LazyMap.capture;
+import static org.apache.logging.log4j.message.lazy.LazyMap.captureAll;
 import static org.apache.logging.log4j.message.lazy.LazyMap.lazy;
 import static org.apache.logging.log4j.message.lazy.LazyMap.entry;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.hamcrest.junit.MatcherAssert.assertThat;
 import static org.mockito.Mockito.*;
 
@@ -64,4 +72,90 @@ public class LazyMapTest {
       assertThat(lazyMap.get("key").toString(), is(equalTo("value")));
     }
   }
+
+  @Nested
+  @DisplayName("#capture")
+  class Capture {
+    @Test
+    void itLeavesImmutableValuesAlone() {
+      String string = "value";
+      Long number = 42L;
+
+      assertThat(capture(string), is(sameInstance(string)));
+      assertThat(capture(number), is(sameInstance(number)));
+    }
+
+    @Test
+    void itDoesNotEvaluateLazyValues() {
+      Supplier<String> mockStringSupplier = spy(stringSupplier);
+      Object lazyValue = lazy("key", mockStringSupplier).getValue();
+
+      assertThat(capture(lazyValue), is(sameInstance(lazyValue)));
+      verify(mockStringSupplier, never()).get();
+    }
+
+    @Test
+    void itSnapshotsStringBuilders() {
+      StringBuilder sb = new StringBuilder("before");
+      Object captured = capture(sb);
+      sb.append(" after");
+
+      assertThat(captured, is(equalTo("before")));
+    }
+
+    @Test
+    void itCopiesCollections() {
+      List<String> list = new ArrayList<>(List.of("a"));
+      Object captured = capture(list);
+      list.add("b");
+
+      assertThat(captured, is(equalTo(List.of("a"))));
+    }
+
+    @Test
+    void itLeavesImmutableCollectionsAlone() {
+      List<String> list = List.of("a");
+      Map<String, String> map = Map.of("a", "b");
+      List<String> unmodifiable = Collections.unmodifiableList(new ArrayList<>(list));
+      List<String> empty = Collections.emptyList();
+
+      assertThat(capture(list), is(sameInstance(list)));
+      assertThat(capture(map), is(sameInstance(map)));
+      assertThat(capture(unmodifiable), is(sameInstance(unmodifiable)));
+      assertThat(capture(empty), is(sameInstance(empty)));
+    }
+
+    @Test
+    void itReplacesAtomicsWithTheirValue() {
+      AtomicInteger counter = new AtomicInteger(1);
+      Object captured = capture(counter);
+      counter.incrementAndGet();
+
+      assertThat(captured, is(equalTo(1)));
+    }
+
+    @Test
+    void itCopiesArrays() {
+      int[] array = { 1, 2 };
+      int[] captured = (int[]) capture(array);
+      array[0] = 3;
+
+      assertThat(captured[0], is(equalTo(1)));
+    }
+
+    @Test
+    void itReturnsTheSameMapWhenNothingIsMutable() {
+      Map<String, Object> data = Map.ofEntries(entry("a", "aVal"), lazy("b", stringSupplier));
+
+      assertThat(captureAll(data), is(sameInstance(data)));
+    }
+
+    @Test
+    void itCopiesTheMapWhenSomethingIsMutable() {
+      Map<String, Object> data = Map.of("a", "aVal", "b", new StringBuilder("bVal"));
+
+      assertThat(captureAll(data), is(not(sameInstance(data))));
+      assertThat(captureAll(data), is(equalTo(Map.of("a", "aVal", "b", "bVal"))));
+    }
+  }
 }
@@ -0,0 +1,233 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.apache.logging.log4j.message.lazy.LazyMap.entry;
+import static org.apache.logging.log4j.message.lazy.LazyMap.lazy;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+public class MessageArenaTest {
+  private static final int CAPACITY = 4096;
+
+  Supplier<String> stringSupplier = new Supplier<String>() {
+    @Override
+    public String get() {
+      return "expensive";
+    }
+  };
+
+  Supplier<String> mockStringSupplier;
+  FormattedDataContext context = FormattedDataContext.of(Map.ofEntries(entry("device", "dev")));
+
+  @BeforeEach
+  void setup() {
+    mockStringSupplier = spy(stringSupplier);
+    MessageArena.attach(CAPACITY);
+  }
+
+  @AfterEach
+  void teardown() {
+    MessageArena.detach();
+  }
+
+  private static Map<String, Object> data() {
+    Map<String, Object> data = new HashMap<>();
+    data.put("a", "aVal");
+    data.put("int", 42);
+    data.put("long", 1234567890123L);
+    data.put("float", 1.5f);
+    data.put("double", 2.25);
+    data.put("bool", true);
+    data.put("nothing", null);
+    data.put("latin1", "café \"quoted\" <tag>");
+    data.put("utf16", "€ 5");
+    return data;
+  }
+
+  private FormattedDataMessage message(Map<String, Object> data) {
+    return new FormattedDataMessage(context, "an_id", "a=%(a) int=%(int) device=%(device)", "a_type", data);
+  }
+
+  @Test
+  void itRendersArenaFieldsAsTheHeapDoes() {
+    FormattedDataMessage arena = message(data());
+    assertThat(MessageArena.usedBytes(), is(greaterThan(0)));
+    MessageArena.detach();
+    FormattedDataMessage heap = message(data());
+
+    assertThat(arena.asString(null, null), is(equalTo(heap.asString(null, null))));
+    for (FormattedDataMessage.Format format : FormattedDataMessage.Format.values()) {
+      assertThat(arena.asString(format, null), is(equalTo(heap.asString(format, null))));
+    }
+    assertThat(arena.getFormat(), is(equalTo("a=aVal int=42 device=dev")));
+    assertThat(arena.getField("latin1"), is(equalTo("café \"quoted\" <tag>")));
+    assertThat(arena.getField("utf16"), is(equalTo("€ 5")));
+  }
+
+  @Test
+  void itKeepsLazyAndContextFieldsOnTheHeap() {
+    FormattedDataMessage message = message(Map.ofEntries(
+        entry("a", "aVal"), entry("device", "mine"), lazy("b", mockStringSupplier)));
+    verify(mockStringSupplier, never()).get();
+
+    assertThat(message.asString(null, null), is(equalTo("[an_id a=\"aVal\" b=\"expensive\" device=\"mine\"]")));
+  }
+
+  @Test
+  void itProjectsArenaFields() {
+    FormattedDataMessage message = message(data());
+    String json = message.asString(FormattedDataMessage.Format.JSON, null, FieldProjection.include("int"));
+
+    assertThat(json, containsString("\"int\":\"42\""));
+    assertThat(json.contains("\"a\""), is(false));
+  }
+
+  @Test
+  void itRecyclesReleasedRegions() {
+    for (int i = 0; i < 10 * CAPACITY; i++) {
+      FormattedDataMessage message = message(data());
+      assertThat(message.getField("int"), is(equalTo("42")));
+      message.release();
+    }
+    assertThat(MessageArena.usedBytes(), is(equalTo(0)));
+  }
+
+  @Test
+  void itKeepsFieldsOnTheHeapWhenTheArenaIsFull() {
+    for (int i = 0; i < CAPACITY; i++) {
+      message(data());
+    }
+    assertThat(MessageArena.usedBytes(), is(lessThanOrEqualTo(CAPACITY)));
+    FormattedDataMessage message = message(data());
+    assertThat(message.getField("int"), is(equalTo("42")));
+    message.release();
+    assertThat(message.getField("int"), is(equalTo("42")));
+  }
+
+  @Test
+  void itRefusesToReadReleasedFields() {
+    FormattedDataMessage message = message(data());
+    message.release();
+    message.release();
+
+    assertThrows(IllegalStateException.class, () -> message.asString(null, null));
+  }
+
+  @Test
+  void itMovesFieldsToTheHeapWhenChanged() {
+    FormattedDataMessage message = message(data());
+    message.with("added", "x");
+    assertThat(MessageArena.usedBytes(), is(equalTo(0)));
+    MessageArena.detach();
+    FormattedDataMessage heap = message(data()).with("added", "x");
+
+    assertThat(message.get("int"), is(equalTo("42")));
+    assertThat(message.asString(FormattedDataMessage.Format.JSON, null),
+        is(equalTo(heap.asString(FormattedDataMessage.Format.JSON, null))));
+  }
+
+  @Test
+  void itEqualsTheSameMessageOnTheHeap() {
+    FormattedDataMessage arena = message(data());
+    MessageArena.detach();
+    FormattedDataMessage heap = message(data());
+
+    assertThat(arena.hashCode(), is(equalTo(heap.hashCode())));
+    assertThat(arena, is(equalTo(heap)));
+    assertThat(arena.getData(), is(equalTo(heap.getData())));
+  }
+
+  @Test
+  void itComparesArenaFieldsWithoutReleasingThem() {
+    Map<String, Object> data = data();
+    data.put("b", lazy("b", mockStringSupplier).getValue());
+    FormattedDataMessage message = message(data);
+    data.put("b", lazy("b", mockStringSupplier).getValue());
+    FormattedDataMessage same = message(data);
+    Map<String, Object> changed = data();
+    changed.put("utf16", "€ 6");
+    FormattedDataMessage other = message(changed);
+
+    assertThat(message.hashCode(), is(equalTo(same.hashCode())));
+    assertThat(message, is(equalTo(same)));
+    assertThat(message.equals(other), is(false));
+    assertThat(MessageArena.usedBytes(), is(greaterThan(0)));
+    assertThat(message.getField("utf16"), is(equalTo("€ 5")));
+    verify(mockStringSupplier, never()).get();
+  }
+
+  @Test
+  void itLooksUpSingleFieldsWithoutReleasingThem() {
+    FormattedDataMessage message = message(data());
+
+    assertThat(message.get("utf16"), is(equalTo("€ 5")));
+    assertThat(message.get("device"), is(equalTo("dev")));
+    assertThat(message.get("missing"), is(nullValue()));
+    assertThat(message.containsKey("int"), is(true));
+    assertThat(message.containsKey("device"), is(true));
+    assertThat(message.containsKey("missing"), is(false));
+    assertThat(MessageArena.usedBytes(), is(greaterThan(0)));
+
+    message.getData();
+    assertThat(MessageArena.usedBytes(), is(equalTo(0)));
+    assertThat(message.get("utf16"), is(equalTo("€ 5")));
+  }
+
+  @Test
+  void itMergesArenaAndHeapFieldsInKeyOrder() {
+    FormattedDataMessage message = new FormattedDataMessage("an_id", "msg", "a_type",
+        Map.ofEntries(entry("z", "zVal"), lazy("b", mockStringSupplier)));
+
+    assertThat(message.asString(null, null), is(equalTo("[an_id b=\"expensive\" z=\"zVal\"]")));
+  }
+
+  @Test
+  void itCapturesEachValueOnce() {
+    int[] copies = new int[1];
+    CharSequence mutable = new CharSequence() {
+      @Override
+      public int length() {
+        return 3;
+      }
+
+      @Override
+      public char charAt(int index) {
+        return "val".charAt(index);
+      }
+
+      @Override
+      public CharSequence subSequence(int start, int end) {
+        return "val".subSequence(start, end);
+      }
+
+      @Override
+      public String toString() {
+        copies[0]++;
+        return "val";
+      }
+    };
+    Map<String, Object> data = new HashMap<>();
+    data.put("a", mutable);
+    FormattedDataMessage message = message(data);
+
+    assertThat(copies[0], is(equalTo(1)));
+    assertThat(message.getField("a"), is(equalTo("val")));
+    assertThat(MessageArena.usedBytes(), is(greaterThan(0)));
+  }
+}
@@ -0,0 +1,60 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.apache.logging.log4j.message.StructuredDataId;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class MessageTemplateTest {
+  @Test
+  void itSplitsLiteralsAndKeys() {
+    MessageTemplate template = MessageTemplate.of("a=%(a), b=%(b)!");
+
+    assertThat(template.size(), is(2));
+    assertThat(template.literalAt(0), is(equalTo("a=")));
+    assertThat(template.keyAt(0), is(equalTo("a")));
+    assertThat(template.literalAt(1), is(equalTo(", b=")));
+    assertThat(template.keyAt(1), is(equalTo("b")));
+    assertThat(template.referenceAt(1), is(equalTo("%(b)")));
+    assertThat(template.literalAt(2), is(equalTo("!")));
+  }
+
+  @Test
+  void itResolvesEscapes() {
+    MessageTemplate template = MessageTemplate.of("\\%(a) \\\\%(b) end\\\n");
+
+    assertThat(template.size(), is(1));
+    assertThat(template.literalAt(0), is(equalTo("%(a) \\")));
+    assertThat(template.keyAt(0), is(equalTo("b")));
+    assertThat(template.literalAt(1), is(equalTo(" end\\\n")));
+  }
+
+  @Test
+  void itLeavesEmptyAndUnclosedReferences() {
+    MessageTemplate template = MessageTemplate.of("%() %(open");
+
+    assertThat(template.size(), is(0));
+    assertThat(template.literalAt(0), is(equalTo("%() %(open")));
+  }
+
+  @Test
+  void itCachesTemplates() {
+    assertThat(MessageTemplate.of("cached %(a)"), is(sameInstance(MessageTemplate.of("cached %(a)"))));
+  }
+
+  @Test
+  void itCachesTheJsonHeaderPerTypeAndId() {
+    MessageTemplate template = MessageTemplate.of("header %(a)");
+    StructuredDataId id = new StructuredDataId("an_id", 32473, null, null);
+    template.cacheJsonHeader("a_type", id, "{header");
+
+    StringBuilder sb = new StringBuilder();
+    assertThat(template.appendJsonHeader("a_type", new StructuredDataId("an_id", 32473, null, null), sb), is(true));
+    assertThat(sb.toString(), is(equalTo("{header")));
+    assertThat(template.appendJsonHeader("other_type", id, sb), is(false));
+    assertThat(template.appendJsonHeader("a_type", new StructuredDataId("an_id", null, null), sb), is(false));
+  }
+}
@@ -0,0 +1,73 @@
+package org.apache.logging.log4j.message.lazy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.apache.logging.log4j.message.lazy.LazyMap.entry;
+import static org.apache.logging.log4j.message.lazy.LazyMap.lazy;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class Rfc5424WriterTest {
+  FormattedDataContext context = FormattedDataContext.of(Map.ofEntries(
+      entry("host", "h[1]"), entry("ip", "10.0.0.1")));
+
+  private static String write(Rfc5424Writer writer, FormattedDataMessage message) {
+    StringBuilder sb = new StringBuilder();
+    writer.writeStructuredData(message, sb);
+    return sb.toString();
+  }
+
+  @Test
+  void itEscapesParamValues() {
+    FormattedDataMessage message = new FormattedDataMessage("an_id", "msg", "a_type", Map.ofEntries(
+        entry("a", "say \"hi\""), entry("b", "back\\slash"), lazy("c", () -> "[bracketed]")));
+
+    assertThat(write(Rfc5424Writer.DEFAULT, message),
+        is(equalTo("[an_id a=\"say \\\"hi\\\"\" b=\"back\\\\slash\" c=\"[bracketed\\]\"]")));
+  }
+
+  @Test
+  void itEscapesContextAndArenaValues() {
+    MessageArena.attach(1024);
+    try {
+      FormattedDataMessage message = new FormattedDataMessage(context, "an_id", "msg", "a_type",
+          Map.ofEntries(entry("a", "x]\"y")));
+
+      assertThat(write(Rfc5424Writer.DEFAULT, message),
+          is(equalTo("[an_id a=\"x\\]\\\"y\" host=\"h[1\\]\" ip=\"10.0.0.1\"]")));
+    } finally {
+      MessageArena.detach();
+    }
+  }
+
+  @Test
+  void itWritesSeparateElements() {
+    Rfc5424Writer writer = Rfc5424Writer.newBuilder()
+        .setContextId("context@32473")
+        .addElement("origin@32473", "ip", "port")
+        .addElement("empty@32473", "missing")
+        .build();
+    FormattedDataMessage message = new FormattedDataMessage(context, "an_id", "msg", "a_type",
+        Map.ofEntries(entry("a", "1"), entry("port", 80)));
+
+    assertThat(write(writer, message), is(equalTo(
+        "[an_id a=\"1\"][context@32473 host=\"h[1\\]\"][origin@32473 ip=\"10.0.0.1\" port=\"80\"]")));
+  }
+
+  @Test
+  void itWritesNilWithoutAnId() {
+    FormattedDataMessage message = new FormattedDataMessage((String) null, "msg", "a_type", Map.of());
+
+    assertThat(write(Rfc5424Writer.DEFAULT, message), is(equalTo("-")));
+  }
+
+  @Test
+  void itRejectsInvalidIds() {
+    assertThrows(IllegalArgumentException.class, () -> Rfc5424Writer.newBuilder().setContextId("has space"));
+    assertThrows(IllegalArgumentException.class, () -> Rfc5424Writer.newBuilder().addElement("a]b", "k"));
+  }
+}
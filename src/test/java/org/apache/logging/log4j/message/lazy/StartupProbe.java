@@ -0,0 +1,42 @@
+package org.apache.logging.log4j.message.lazy;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.apache.logging.log4j.message.lazy.LazyMap.entry;
+
+/**
+ * Main class run in a fresh JVM by {@link FormattedDataMessageStartupTest}. Prints the nanoseconds from entering
+ * {@code main} to the first formatted message as {@code first=<nanos>}; with the argument {@code warm} it first warms
+ * the message's template and prints the time that took as {@code warmup=<nanos>}.
+ */
+public final class StartupProbe {
+  static final String TYPE = "startup_type";
+  static final String ID = "startup_id";
+  static final String TEMPLATE = "Started %(service) in %(millis) ms";
+
+  private StartupProbe() {
+  }
+
+  public static void main(final String[] args) {
+    final long start = System.nanoTime();
+    if (args.length > 0 && "warm".equals(args[0])) {
+      FormattedDataWarmup.warm(Collections.singletonList(TYPE + '\t' + ID + '\t' + TEMPLATE));
+      final long warmed = System.nanoTime();
+      System.out.println("warmup=" + (warmed - start));
+      format();
+      System.out.println("first=" + (System.nanoTime() - warmed));
+    } else {
+      format();
+      System.out.println("first=" + (System.nanoTime() - start));
+    }
+  }
+
+  private static void format() {
+    final Map<String, Object> data = Map.ofEntries(entry("service", "cli"), entry("millis", 42));
+    final String formatted = new FormattedDataMessage(ID, TEMPLATE, TYPE, data).getFormattedMessage();
+    if (formatted.isEmpty()) {
+      throw new IllegalStateException("Nothing was formatted");
+    }
+  }
+}